@@ -1,26 +1,43 @@
 package com.buyfull.sdk;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.util.Log;
 
+import com.buyfull.dsp.BuyfullDsp;
+import com.buyfull.dsp.CrossCheckEngine;
+import com.buyfull.dsp.DspEngine;
+import com.buyfull.dsp.DspEngines;
+import com.buyfull.dsp.PcmWindow;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 import static android.media.AudioRecord.RECORDSTATE_RECORDING;
@@ -34,10 +51,17 @@ public class BuyfullRecorder {
     public static final int NO_RECORD_PERMISSION = 5;//没有录音权限
     public static final int SIGNAL_DB_TOO_LOW = 6;//录音分贝数太低 <-125，不上传服务器检测
 
+    //reportDecode的检测结果
+    public static final int DECODE_OK = 0;//服务器检测到了
+    public static final int DECODE_NO_RESULT = 1;//服务器没有检测到
+    public static final int DECODE_DB_TOO_LOW = 2;//服务器认为分贝太低
+
     public static final float   DEFAULT_LIMIT_DB = -125f; //分贝阈值，低于此值不上传判断
     public static final long    DEFAULT_RECORD_TIMEOUT = 6000; //默认录音超时
     public static final long    DEFAULT_VALID_TIME_PERIOD = 1000; //默认上次录音的有效时间
     public static final int     DEFAULT_RECORD_SAMPLE_RATE = 48000;
+    public static final float   DEFAULT_PRE_ROLL = 5; //startPreRoll默认保持录音的秒数
+    public static final long    DEFAULT_HOP = 550; //startContinuous默认两个窗口结尾之间的毫秒数
 
     public class RecordException extends Exception{
         public int code;//见上面定义
@@ -51,6 +75,16 @@ public class BuyfullRecorder {
         }
     }
 
+    /**
+     * 在通知线程直接回调，不再post到别的线程。回调里不要做耗时的事，会推迟下一个窗口
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     public interface IRecordCallback {
         /**
          * 录音结束后回调
@@ -63,7 +97,7 @@ public class BuyfullRecorder {
     }
 
     private class RecordContext{
-        public Handler              callbackHandler;
+        public Executor             callbackExecutor;
         public IRecordCallback      callback;
         public JSONObject           options;
         public long                 timeStamp;
@@ -71,12 +105,25 @@ public class BuyfullRecorder {
         public long                 timeOut = DEFAULT_RECORD_TIMEOUT;
         public long                 validTimePeriod = DEFAULT_VALID_TIME_PERIOD;
         public boolean              stopAfterReturn = false;//是否在录音返回后自动停止录音
-
-        public RecordContext(JSONObject _options, IRecordCallback cb){
+        public String               engine = DspEngines.REFERENCE;//计算分贝和BIN的引擎，见DspEngines
+        public float                crossCheck = 0;//按这个比例抽查，同时用reference引擎计算并记录差别
+        public long                 preRoll = 0;//预录：返回后继续录音的毫秒数，0表示不预录
+        public long                 requestFrame;//请求时环形缓冲区的位置，之前的是预录的声音
+        public long                 minEndFrame = 0;//窗口结尾至少要录到这个位置（minDelay，或者预录的声音分贝不够时）
+        public long                 waitFrame = Long.MAX_VALUE;//等待录音线程写到的位置
+        public long                 waitStartFrame = 0;//开始等待时环形缓冲区的位置，超时时判断这期间有没有录到数据
+        public long                 hop = 0;//连续检测时两个窗口结尾之间的毫秒数，0表示只检测一次
+        public long                 lastEndFrame = 0;//连续检测时上一个窗口结尾的位置
+        public final AtomicInteger  inFlight = new AtomicInteger();//连续检测时已经发出还没有回调完的窗口数
+        public boolean              blocked = false;//连续检测时等回调完成才取下一个窗口
+        public boolean              ackWindows = false;//连续检测时回调返回不算完成，要调用windowDone
+
+        public RecordContext(JSONObject _options, IRecordCallback cb, Executor executor){
             callback = cb;
             options = _options;
             timeStamp = System.currentTimeMillis();
-            callbackHandler = new Handler();
+            requestFrame = _ring.written();
+            callbackExecutor = (executor != null) ? executor : HandlerExecutor.current();
             try {
                 //允许的option的值
                 if (options != null){
@@ -84,6 +131,19 @@ public class BuyfullRecorder {
                     timeOut = options.optLong("timeout", DEFAULT_RECORD_TIMEOUT);
                     stopAfterReturn = options.optBoolean("stopAfterReturn", false);
                     validTimePeriod = options.optLong("validTimePeriod", DEFAULT_VALID_TIME_PERIOD);
+                    //zoomBin、fixedPoint、parallelFFT是engine的简写
+                    if (options.optBoolean("fixedPoint", false)){
+                        engine = DspEngines.FIXED;
+                    }else if (options.optBoolean("zoomBin", false)){
+                        engine = DspEngines.ZOOM;
+                    }else if (options.optBoolean("parallelFFT", false)){
+                        engine = DspEngines.PARALLEL;
+                    }
+                    engine = options.optString("engine", engine);
+                    crossCheck = (float) options.optDouble("crossCheck", 0);
+                    preRoll = (long) (options.optDouble("preRoll", 0) * 1000);
+                    //窗口结尾至少比请求时晚minDelay毫秒，用来在上一个窗口上传时提前取下一个不重复的窗口
+                    minEndFrame = requestFrame + options.optLong("minDelay", 0) * DEFAULT_RECORD_SAMPLE_RATE / 1000;
                 }
             }catch (Exception e){
                 e.printStackTrace();
@@ -117,21 +177,181 @@ public class BuyfullRecorder {
         return _hasTestFinished() && _recorder != null && _recorder.getRecordingState() == RECORDSTATE_RECORDING;
     }
     /**
-     *  录音并且返回压缩BIN数据，默认录音参数为48000,16bit,单声道，时长1.1秒。
+     *  录音并且返回压缩BIN数据，默认录音参数为48000,16bit,单声道，时长1.1秒。在调用线程回调
      * @param options
      * @param callback
      */
     public void record(JSONObject options, IRecordCallback callback){
+        record(options, callback, null);
+    }
+
+    /**
+     * 同上，用executor回调，为空时在调用线程回调。DIRECT_EXECUTOR在通知线程直接回调，少一次线程切换
+     * @param options
+     * @param callback
+     * @param executor
+     */
+    public void record(JSONObject options, IRecordCallback callback, Executor executor){
+        if (callback == null)   return;
+        _recordStoped = false;
+        RecordContext cxt = new RecordContext(options, callback, executor);
+        Message msg = _notifyThread.handler().obtainMessage(START_RECORD, -1, -1,cxt);
+        msg.sendToTarget();
+    }
+
+    /**
+     * 连续检测：保持录音，每隔hop毫秒（options中的"hop"，默认DEFAULT_HOP）取一个以最新录音结尾的窗口算分贝和BIN并回调，
+     * 窗口比hop长时相邻的窗口重叠。上一个窗口的回调还在处理（比如上传）时会先算好下一个，
+     * 再往后的窗口等回调完成后直接取最新的录音。
+     * 分贝不够（SIGNAL_DB_TOO_LOW）和超时（RECORD_TIMEOUT，会重新打开录音）也会回调并继续，
+     * 直到stop()或者出错，最后一次回调的error.code为RECORD_STOPED、RECORD_FAIL等。在调用线程回调
+     * @param options
+     * @param callback
+     */
+    public void startContinuous(JSONObject options, IRecordCallback callback){
+        startContinuous(options, callback, null);
+    }
+
+    /**
+     * 同上，用executor回调，为空时在调用线程回调。DIRECT_EXECUTOR在通知线程直接回调，回调返回后才取下一个窗口
+     * @param options
+     * @param callback
+     * @param executor
+     */
+    public void startContinuous(JSONObject options, IRecordCallback callback, Executor executor){
         if (callback == null)   return;
         _recordStoped = false;
-        RecordContext cxt = new RecordContext(options, callback);
-        Message msg = _notifyThread.mHandler.obtainMessage(START_RECORD, -1, -1,cxt);
+        RecordContext cxt = new RecordContext(options, callback, executor);
+        cxt.hop = (options != null) ? options.optLong("hop", DEFAULT_HOP) : DEFAULT_HOP;
+        cxt.ackWindows = (options != null) && options.optBoolean("ackWindows", false);
+        if (cxt.hop <= 0){
+            cxt.hop = DEFAULT_HOP;
+        }
+        cxt.stopAfterReturn = false;
+        cxt.preRoll = 0;
+        Message msg = _notifyThread.handler().obtainMessage(START_RECORD, -1, -1,cxt);
+        msg.sendToTarget();
+    }
+
+    /**
+     * 当前的带内信号分贝数（最近2048帧），录音线程每读到一块数据就更新一次，调用时不需要额外计算。
+     * 没有在录音时返回-150
+     * @return
+     */
+    public float getCurrentDB(){
+        if (!isRecording())
+            return THRESHOLD_DB;
+        return _currentDB;
+    }
+
+    /**
+     * 预录：提前开始录音并保持一段时间（options中的"preRoll"秒，默认DEFAULT_PRE_ROLL），
+     * 期间调用record会直接用已经录好的声音，不用再等1秒多。
+     * 需要先完成过一次record（选好录音源），否则不做任何事
+     * @param options
+     */
+    public void startPreRoll(JSONObject options){
+        float preRoll = DEFAULT_PRE_ROLL;
+        if (options != null){
+            preRoll = (float) options.optDouble("preRoll", DEFAULT_PRE_ROLL);
+        }
+        if (preRoll <= 0)   return;
+        Message msg = _notifyThread.handler().obtainMessage(START_PRE_ROLL, (int)(preRoll * 1000), 0);
+        msg.sendToTarget();
+    }
+
+    /**
+     * 读取上次保存的录音源测试结果，同一个系统版本和SDK版本下次启动不用再测试每个录音源。
+     * 只保存context.getApplicationContext()的SharedPreferences
+     * @param context
+     */
+    public void setContext(Context context){
+        if (context == null)    return;
+        Message msg = _notifyThread.handler().obtainMessage(LOAD_CALIBRATION, context.getApplicationContext());
+        msg.sendToTarget();
+    }
+
+    /**
+     * 上传检测后报告服务器的结果，用来调整录音源的排序：检测成功率高的录音源排在前面
+     * @param bin       record回调中的BIN数据
+     * @param result    DECODE_OK、DECODE_NO_RESULT或DECODE_DB_TOO_LOW
+     * @param dB        此次录音的分贝数
+     */
+    public void reportDecode(byte[] bin, int result, float dB){
+        int index = _takeBinSource(bin);
+        if (index < 0)  return;
+        Message msg = _notifyThread.handler().obtainMessage(DECODE_RESULT, index, result, dB);
+        msg.sendToTarget();
+    }
+
+    public interface IReadyCallback {
+        /**
+         * 录音线程已经启动，DSP的表已经算好
+         */
+        void onReady();
+    }
+
+    /**
+     * 准备好后在调用的线程回调，已经准备好时也会回调。不调用也可以直接record，会排在准备之后
+     * @param callback
+     */
+    public void whenReady(final IReadyCallback callback){
+        whenReady(callback, null);
+    }
+
+    /**
+     * 同上，用executor回调，为空时在调用线程回调，DIRECT_EXECUTOR在通知线程直接回调
+     * @param callback
+     * @param executor
+     */
+    public void whenReady(final IReadyCallback callback, Executor executor){
+        if (callback == null)   return;
+        final Executor callbackExecutor = (executor != null) ? executor : HandlerExecutor.current();
+        _notifyThread.handler().obtainMessage(WHEN_READY, new Runnable() {
+            @Override
+            public void run() {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            callback.onReady();
+                        }catch (Exception e){
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }).sendToTarget();
+    }
+
+    /**
+     * 连续检测的options中"ackWindows"为true时，每个窗口（包括分贝不够和超时的）处理完后调用一次，
+     * 比如上传返回后，最多有STREAM_MAX_IN_FLIGHT个窗口没有处理完，再往后的窗口等处理完再取最新的录音。
+     * 没有设置时回调返回就算处理完
+     * @param options   调用startContinuous时传入的options
+     */
+    public void windowDone(JSONObject options){
+        if (options == null)    return;
+        Message msg = _notifyThread.handler().obtainMessage(WINDOW_DONE, options);
+        msg.sendToTarget();
+    }
+
+    /**
+     * 取消一个record或startContinuous的请求，不影响其它请求：不再等录音，还没有算的窗口不再算，
+     * 回调一次RECORD_STOPED。没有其它请求在用录音时，连续检测停止录音，record按它的stopAfterReturn决定
+     * @param options   调用record或startContinuous时传入的options
+     */
+    public void cancel(JSONObject options){
+        if (options == null)    return;
+        Message msg = _notifyThread.handler().obtainMessage(CANCEL_RECORD, options);
         msg.sendToTarget();
     }
 
     public void stop(){
         _recordStoped = true;
-        Message msg = _notifyThread.mHandler.obtainMessage(STOP_RECORD);
+        _notifyThread.handler().removeMessages(PRE_ROLL_STOP);
+        _notifyThread.handler().removeMessages(CALIBRATE_NEXT);
+        Message msg = _notifyThread.handler().obtainMessage(STOP_RECORD);
         msg.sendToTarget();
     }
 
@@ -139,45 +359,60 @@ public class BuyfullRecorder {
     private static final String     TAG = "BUYFULL_RECORDER";
     private static final boolean    DEBUG = false;
 
-    private static final float Pi = 3.14159265358979f;
-    private static final int N_WAVE = (64*1024);
-    private static final int LOG2_N_WAVE = (6+10);
     private static final String SDK_VERSION = "1.1.2";
 
     private volatile static BuyfullRecorder instance;
-    private static float                    fsin[];
-    private float[]                         real;
-    private float[]                         imag;
     private LooperThread                    _notifyThread;
-    private LooperThread                    _recordThread;
-    private volatile byte[]                 _recordBuffer;
-    private static class RecordData{
-        public byte[] data;
-        public long timeStamp;
-    }
-    private ConcurrentLinkedQueue<RecordData>   _tempRecordBuffer;
-    private ByteBuffer                      _binBuffer;
+    private CaptureThread                   _captureThread;
+    private final byte[]                    _testBuffer;
+    private final PcmRing                   _ring;
     private volatile AudioRecord            _recorder;
-    private volatile long                   _lastBufferTimeStamp;
-    private volatile byte[]                 _lastPCMData;
+    private volatile long                   _lastBufferTimeStamp;//最后一个采样录到的时间，System.nanoTime()的毫秒
+    private volatile long                   _lastPCMStart = -1;
+    private volatile int                    _lastPCMFrames = 0;
     private volatile boolean                _recordStoped;
 
     private static final int START_RECORD = 1;
     private static final int STOP_RECORD = 2;
     private static final int START_TEST_RECORD = 3;
     private static final int FETCH_BUFFER = 4;
-    private static final int UPDATE_BUFFER = 5;
     private static final int DESTORY = 6;
+    private static final int START_PRE_ROLL = 7;
+    private static final int PRE_ROLL_STOP = 8;
+    private static final int FETCH_READY = 9;
+    private static final int FETCH_TIMEOUT = 10;
+    private static final int STREAM_READY = 11;
+    private static final int LOAD_CALIBRATION = 12;
+    private static final int CALIBRATE_NEXT = 13;
+    private static final int DECODE_RESULT = 14;
+    private static final int PREPARE = 15;
+    private static final int WHEN_READY = 16;
+    private static final int CANCEL_RECORD = 17;
+    private static final int WINDOW_DONE = 18;
+    private static final int CALIBRATE_RESULT = 19;
 
     private static class LooperThread extends Thread{
-        public Handler mHandler;
-        public volatile boolean threadStarted;
-        public volatile boolean threadEnded;
+        private Handler mHandler;
+        private final CountDownLatch _started = new CountDownLatch(1);
         public LooperThread(String threadName)
         {
             super(threadName);
         }
 
+        /**
+         * 线程启动后才有Handler，刚创建还没启动完时等它，不用轮询
+         */
+        public Handler handler(){
+            while (true){
+                try {
+                    _started.await();
+                    return mHandler;
+                }catch (InterruptedException e){
+
+                }
+            }
+        }
+
         @SuppressLint("HandlerLeak")
         public void run(){
             Looper.prepare();
@@ -186,6 +421,7 @@ public class BuyfullRecorder {
                     switch (msg.what){
                         case START_RECORD:
                             if (instance != null){
+                                instance._addActive((RecordContext) msg.obj);
                                 if (!instance._hasTestFinished()){
                                     instance._doTestRecord(msg.arg1,msg.arg2,(RecordContext) msg.obj);
                                 }else {
@@ -196,9 +432,12 @@ public class BuyfullRecorder {
 
                         case STOP_RECORD:
                             if (instance != null){
+                                instance._stopIdleTest();
                                 if (instance._hasTestFinished()) {
                                     instance._doStop();
-                                }}
+                                }
+                                instance._onFetchReady(true);
+                            }
 
                             break;
 
@@ -214,237 +453,314 @@ public class BuyfullRecorder {
                             }
                             break;
 
-                        case UPDATE_BUFFER:
+                        case FETCH_READY:
+                            if (instance != null) {
+                                if (msg.obj != null){
+                                    instance._onCaptureError((AudioRecord)msg.obj);
+                                }else{
+                                    instance._onFetchReady(false);
+                                }
+                            }
+                            break;
+
+                        case FETCH_TIMEOUT:
+                            if (instance != null) {
+                                instance._onFetchTimeout((RecordContext)msg.obj);
+                            }
+                            break;
+
+                        case STREAM_READY:
+                            if (instance != null) {
+                                instance._onStreamReady((RecordContext)msg.obj);
+                            }
+                            break;
+
+                        case LOAD_CALIBRATION:
+                            if (instance != null) {
+                                instance._loadCalibration((Context)msg.obj);
+                            }
+                            break;
+
+                        case CALIBRATE_NEXT:
+                            if (instance != null) {
+                                instance._calibrateNext();
+                            }
+                            break;
+
+                        case CALIBRATE_RESULT:
+                            if (instance != null) {
+                                instance._onIdleTestResult((SourceTest) msg.obj);
+                            }
+                            break;
+
+                        case DECODE_RESULT:
+                            if (instance != null) {
+                                instance._onDecodeResult(msg.arg1, msg.arg2, (Float) msg.obj);
+                            }
+                            break;
+
+                        case START_PRE_ROLL:
+                            if (instance != null) {
+                                instance._doPreRoll(msg.arg1);
+                            }
+                            break;
+
+                        case PRE_ROLL_STOP:
+                            if (instance != null){
+                                //还有请求在用录音时，由最后一个返回的决定是否停止
+                                if (!instance._activeContexts.isEmpty())
+                                    break;
+                                if (instance._hasTestFinished()) {
+                                    instance._doStop();
+                                }
+                                instance._onFetchReady(true);
+                            }
+                            break;
+
+                        case WINDOW_DONE:
+                            if (instance != null) {
+                                instance._onWindowDone((JSONObject) msg.obj);
+                            }
+                            break;
+
+                        case CANCEL_RECORD:
                             if (instance != null) {
-                                instance._updateBuffer(instance._recorder);
+                                instance._doCancel((JSONObject) msg.obj);
                             }
                             break;
 
+                        case PREPARE:
+                            BuyfullDsp.prepare();
+                            break;
+
+                        case WHEN_READY:
+                            //PREPARE一定已经处理过了
+                            ((Runnable) msg.obj).run();
+                            break;
+
                         case DESTORY:
                         default:
-                            threadEnded = true;
                             Looper.myLooper().quit();
                     }
                 }
             };
-            threadStarted = true;
+            _started.countDown();
             Looper.loop();
-            threadEnded = true;
         }
     }
 
-    private BuyfullRecorder(){
-        _tempRecordBuffer = new ConcurrentLinkedQueue<RecordData>();
-        _recordBuffer = new byte[230 * 1024];
-        _binBuffer = ByteBuffer.allocate(8 * 1024).order(ByteOrder.LITTLE_ENDIAN);
-    }
-
-    private void init(){
-        Log.v(TAG,"Buyfull recorder version:" + SDK_VERSION);
-        fsin = new float[N_WAVE];
-        real = new float[N_WAVE];
-        imag = new float[N_WAVE];
-
-        _initRecordConfig();
-        _notifyThread = new LooperThread("BuyfullRecorder1");
-        _notifyThread.start();
-
-        _recordThread = new LooperThread("BuyfullRecorder2");
-        _recordThread.setPriority(Thread.MAX_PRIORITY);
-        _recordThread.start();
+    /**
+     * 录音线程：阻塞在AudioRecord.read里，每读到一块就写进环形缓冲区，没有在录音时等_wakeCapture()
+     */
+    private class CaptureThread extends Thread{
+        private volatile boolean _quit;
+        private boolean _woken;
 
-        while (!(_notifyThread.threadStarted && _recordThread.threadStarted))
+        public CaptureThread(String threadName)
         {
-            try{
-                Thread.sleep(100);
-            }
-            catch (Exception e)
-            {
-
-            }
-        }
-
-        for (int i=0; i<N_WAVE; i++){
-            fsin[i] = (float)Math.sin(2*Pi/N_WAVE*i);
+            super(threadName);
         }
 
-        Message msg = _recordThread.mHandler.obtainMessage(UPDATE_BUFFER);
-        _recordThread.mHandler.sendMessage(msg);
-    }
+        public void run(){
+            try {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            }catch (Exception e){
 
-    private void _destory(){
-        _notifyThread.mHandler.obtainMessage(DESTORY).sendToTarget();
-        _recordThread.mHandler.obtainMessage(DESTORY).sendToTarget();
-        while (!(_notifyThread.threadEnded && _recordThread.threadEnded))
-        {
-            try{
-                Thread.sleep(100);
             }
-            catch (Exception e)
-            {
-
+            AudioRecord last = null;
+            while (!_quit){
+                AudioRecord record = _capturing.get();
+                if (record == null){
+                    //没有在录音时顺便测试剩下的录音源
+                    SourceTest test = _idleTestQueue.getAndSet(null);
+                    if (test != null){
+                        _runIdleTest(test);
+                        continue;
+                    }
+                    _waitWake();
+                    continue;
+                }
+                if (record != last){
+                    last = record;
+                    _zeroReads = 0;
+                }
+                _readBuffer(record);
             }
         }
-    }
-
-    private static final float THRESHOLD_DB = -150;
-    private static final int THRESHOLD_DELAY = 1000;
-    private static final int RECORD_FETCH_FRAMES = 4096;
-    private static final int TEST_FETCH_FRAMES = 2048;
-
-    private double toDB(double amp){
-        if (amp <= 0 || Double.isNaN(amp) || Double.isInfinite(amp))
-            return THRESHOLD_DB;
 
-        return Math.log(amp) * (8.6858896380650365530225783783322);
-    }
+        private synchronized void _waitWake(){
+            while (!_woken && !_quit){
+                try {
+                    wait();
+                }catch (InterruptedException e){
 
-    private float getDB(byte[] pcmData, int pcmDataSize, int sampleRate, int channels, int bits, boolean isLastFrame) throws Exception{
-        if (pcmData == null){
-            throw (new Exception("invalid pcmData or outBin:"));
-        }
-        int stepCount = TEST_FETCH_FRAMES;
-        int stepSize = channels * (bits / 8);
-        int startIndex = 0;
-        if (!(sampleRate == DEFAULT_RECORD_SAMPLE_RATE)){
-            throw (new Exception("invalid sample rate:" + sampleRate));
-        }else if (channels < 1 || channels > 2){
-            throw (new Exception("invalid channel count:" + channels));
-        }else if (!(bits == 16 || bits == 32)){
-            throw (new Exception("invalid bit count:" + bits));
-        }else{
-            int minPCMDataSize = stepCount * stepSize;
-            if (pcmDataSize < minPCMDataSize){
-                throw (new Exception("invalid pcmData length:" + pcmDataSize));
-            }else{
-                startIndex += (pcmDataSize - minPCMDataSize);
-                if (!isLastFrame){
-                    startIndex -= sampleRate * stepSize;
                 }
             }
+            _woken = false;
         }
 
-        ByteBuffer pcmByte = ByteBuffer.wrap(pcmData, 0, pcmDataSize).order(ByteOrder.LITTLE_ENDIAN);
-
-        boolean allZero = true;
-        float[] re = real;
-        float[] im = imag;
-        Arrays.fill(re,0,stepCount,0);
-        Arrays.fill(im,0,stepCount,0);
-        for (int index = 0;index < stepCount;++index,startIndex += stepSize){
-            if (bits == 16){
-                re[index] = (float)(pcmByte.getShort(startIndex)/32768.0);
-            }else{
-                re[index] = pcmByte.getFloat(startIndex);
-            }
-            if (re[index] != 0)
-                allZero = false;
+        public synchronized void wake(){
+            _woken = true;
+            notifyAll();
         }
-        if (allZero)
-            return THRESHOLD_DB;
 
-        window_hanning(re, stepCount);
-        fft(re,im,11,0);
-        int s = 836, l = 90;
-        if (sampleRate == DEFAULT_RECORD_SAMPLE_RATE){
-            s = 768;
-            l = 84;
+        public void quit(){
+            _quit = true;
+            wake();
         }
-        double db = 0;
-        for (int index = 0;index < l;++index){
-            double _re = re[s + index];
-            double _im = im[s + index];
-            db += Math.sqrt(_re * _re + _im * _im);
-        }
-        db /= l;
-        db = toDB(db);
+    }
 
-        return (float)db;
+    private BuyfullRecorder(){
+        _testBuffer = new byte[TEST_FETCH_FRAMES * RECORD_CHANNEL * (RECORD_BITS / 8)];
+        _ring = new PcmRing(RING_FRAMES, RECORD_FETCH_FRAMES);
     }
 
-    private byte[] buildBin(byte[] pcmData, int sampleRate, int recordPeriodInMS, int channels, int bits) throws Exception{
-        if (pcmData == null){
-            throw (new Exception("invalid pcmData or outBin:"));
-        }
-        int pcmDataSize = pcmData.length;
-        int stepSize = channels * (bits / 8);
-        int startIndex = 0;
-        int stepCount = (sampleRate * recordPeriodInMS) / 1000;
-        if (recordPeriodInMS < RECORD_PERIOD){
-            throw (new Exception("invalid pcmData length:" + pcmDataSize));
-        }else{
-            stepCount = sampleRate * RECORD_PERIOD / 1000;
-            startIndex = (pcmDataSize - stepCount * stepSize);
-        }
+    /**
+     * 只启动线程，不等它们启动完。DSP的表在通知线程中算，第一次检测前算好，之前的检测排在后面
+     */
+    private void init(){
+        Log.v(TAG,"Buyfull recorder version:" + SDK_VERSION);
+        _initRecordConfig();
+        _notifyThread = new LooperThread("BuyfullRecorder1");
+        _notifyThread.start();
 
-        int resultSize = stepCount / 8;
+        _captureThread = new CaptureThread("BuyfullRecorder2");
+        _captureThread.start();
 
-        if (_binBuffer.capacity() < (resultSize + 12)){
-            throw (new Exception("pcmData is too big"));
-        }
-        _lastPCMData = pcmData;
-        if (!(sampleRate == DEFAULT_RECORD_SAMPLE_RATE)){
-            throw (new Exception("invalid sample rate:" + sampleRate));
-        }else if (channels < 1 || channels > 2){
-            throw (new Exception("invalid channel count:" + channels));
-        }else if (!(bits == 16 || bits == 32)){
-            throw (new Exception("invalid bit count:" + bits));
-        }
+        _notifyThread.handler().obtainMessage(PREPARE).sendToTarget();
+    }
 
-        ByteBuffer pcmByte = ByteBuffer.wrap(pcmData, 0, pcmDataSize).order(ByteOrder.LITTLE_ENDIAN);
+    private void _destory(){
+        SourceTest test = _idleTest;
+        if (test != null){
+            test.aborted = true;
+        }
+        _notifyThread.handler().obtainMessage(DESTORY).sendToTarget();
+        _captureThread.quit();
+        try {
+            _notifyThread.join();
+            _captureThread.join();
+        }catch (InterruptedException e){
 
-        float[] re = real;
-        float[] im = imag;
-        Arrays.fill(re,0);
-        Arrays.fill(im,0);
-        for (int index = 0;index < stepCount;++index, startIndex += stepSize){
-            if (bits == 16){
-                re[index] = (float)(pcmByte.getShort(startIndex)/32768.0);
-            }else{
-                re[index] = pcmByte.getFloat(startIndex);
-            }
         }
+    }
 
-        fft(re,im,LOG2_N_WAVE,0);
+    private static final float THRESHOLD_DB = BuyfullDsp.THRESHOLD_DB;
+    private static final int THRESHOLD_DELAY = 1000;
+    private static final int RECORD_FETCH_FRAMES = 4096;
+    private static final int RING_FRAMES = 128 * 1024;  //约2.7秒
+    private static final int CAPTURE_BUFFER_MS = 400;   //AudioRecord缓冲区的长度，录音线程晚这么久还没读就会丢数据
+    private static final int ZERO_READ_BACKOFF_MS = 10; //read返回0时等这么久再读，不空转
+    private static final int MAX_ZERO_READS = 50;       //连续这么多次read返回0当作录音出错
+    private static final int TEST_FETCH_FRAMES = BuyfullDsp.DB_FRAMES;
+    private static final int STREAM_MAX_IN_FLIGHT = 2;  //连续检测最多同时有几个窗口在回调中
+    private static final String PREFERENCES_NAME = "buyfull_recorder";
+    private static final String CALIBRATION_KEY = "calibration";
+    private static final String PREFER_KEY = "prefer";
+    private static final float GOOD_ENOUGH_SCORE = 50;  //测试到getScore()不低于这个分数的录音源就先用它，约为带内-85dB并且300ms内录到声音
+    private static final int CALIBRATE_IDLE_DELAY = 1000;   //检测返回后空闲这么久再测试剩下的录音源
+    private static final float EXPLORE_RATE = 0.1f;     //打开录音时有这个概率试一下排名不是第一的录音源
+    private static final float DECODE_DECAY = 0.9f;     //每次检测结果让以前的结果的权重乘以这个值，约按最近10次算成功率
+    private static final float PRIOR_WEIGHT = 2;        //测试分数相当于几次检测结果
+    private static final float POWER_ALPHA = 0.2f;      //检测时的分贝按这个比例更新测试时的分贝
+    private static final int RECENT_BINS = 4;           //记住最近几个BIN是哪个录音源录的
+    private static final int DECODE_SAVE_INTERVAL = 10000;  //检测结果最多每隔这么久保存一次
+
+    private byte[] buildBin(DspEngine engine, PcmWindow window, long startFrame, int sampleRate, int recordPeriodInMS) throws Exception{
+        _lastPCMStart = startFrame;
+        _lastPCMFrames = window.frames();
+        byte[] result = engine.buildBin(window, sampleRate, recordPeriodInMS);
+        if (DEBUG){
+            Log.d(TAG,"bin size " + result.length);
+            Log.d(TAG,"bin md5 " + md5Decode32(result));
 
-        int s = 26112;
-        if (sampleRate == DEFAULT_RECORD_SAMPLE_RATE){
-            s = 24064;
         }
+        return result;
+    }
 
-        System.arraycopy(re,s,re,0,4096);
-        System.arraycopy(im,s,im,0,4096);
-        Arrays.fill(re,4096,N_WAVE,0);
-        Arrays.fill(im,4096,N_WAVE,0);
-        fft(re,im,13,1);
-
-        int finalSize = resultSize + 12;
-        _binBuffer.clear();
-        _binBuffer.limit(finalSize);
-        _binBuffer.mark();
-        _binBuffer.position(4);
-        resultSize = compress(re, _binBuffer, resultSize);
-        if (resultSize > 65535){
-            throw (new Exception("too long bin"));
+    /**
+     * 录音参数对应的引擎，需要抽查时返回对应的比对引擎，同一个引擎的比对统计一直累计
+     */
+    private DspEngine _engineFor(RecordContext cxt){
+        DspEngine engine = DspEngines.get(cxt.engine);
+        if (cxt.crossCheck <= 0 || engine == DspEngines.reference())
+            return engine;
+
+        synchronized (_crossChecks){
+            CrossCheckEngine check = _crossChecks.get(engine.name());
+            if (check == null){
+                check = new CrossCheckEngine(engine, DspEngines.reference(), cxt.crossCheck);
+                _crossChecks.put(engine.name(), check);
+            }else{
+                check.setFraction(cxt.crossCheck);
+            }
+            return check;
         }
-        _binBuffer.reset();
-        if (sampleRate == 44100){
-            _binBuffer.put((byte) 1);
-        }else{
-            _binBuffer.put((byte) 2);
+    }
+
+    /**
+     * 各个引擎与reference引擎的比对统计，key为引擎名称，只有设置过crossCheck的引擎才有
+     * @return
+     */
+    public JSONObject getEngineStats(){
+        JSONObject result = new JSONObject();
+        synchronized (_crossChecks){
+            for (CrossCheckEngine check : _crossChecks.values()){
+                CrossCheckEngine.Stats stats = check.getStats();
+                try {
+                    JSONObject item = new JSONObject();
+                    item.put("fraction", stats.fraction);
+                    item.put("binCount", stats.binCount);
+                    item.put("binChecked", stats.binChecked);
+                    item.put("maxByteDelta", stats.maxByteDelta);
+                    item.put("bytesOverOne", stats.bytesOverOne);
+                    item.put("sizeMismatch", stats.sizeMismatch);
+                    item.put("maxFactorError", stats.maxFactorError);
+                    item.put("dBCount", stats.dBCount);
+                    item.put("dBChecked", stats.dBChecked);
+                    item.put("maxDBDelta", stats.maxDBDelta);
+                    item.put("meanDBDelta", stats.meanDBDelta);
+                    item.put("referenceErrors", stats.referenceErrors);
+                    result.put(stats.engine, item);
+                }catch (Exception e){
+                    e.printStackTrace();
+                }
+            }
         }
-        _binBuffer.put((byte) 1);
-        _binBuffer.putShort((short) (resultSize & 0xffff));
-        byte[] result = new byte[finalSize];
-        System.arraycopy(_binBuffer.array(),0,result,0,finalSize);
-        if (DEBUG){
-            Log.d(TAG,"bin size " + finalSize);
-            Log.d(TAG,"bin md5 " + md5Decode32(result));
+        return result;
+    }
 
+    /**
+     * 录音数据的连续性统计：overruns为AudioRecord丢数据的次数，droppedFrames为估计丢掉的采样数，
+     * skippedWindows为因为被覆盖或者中间丢了数据而没有回调的窗口数
+     * @return
+     */
+    public JSONObject getCaptureStats(){
+        JSONObject result = new JSONObject();
+        try {
+            result.put("overruns", _overrunCount);
+            result.put("droppedFrames", _droppedFrames);
+            result.put("skippedWindows", _skippedWindows);
+        }catch (Exception e){
+            e.printStackTrace();
         }
         return result;
     }
 
+    /**
+     * 一次录音源测试：参数在通知线程中填好，结果在测试的线程中填
+     */
+    private static class SourceTest{
+        int                     testIndex;      //开始时的_recordTestIndex，结果回来时不同说明测试状态已经变了
+        int                     audioSource;
+        int                     recordPeriod;
+        volatile boolean        aborted;        //空闲测试时要开始录音了，尽快放开麦克风
+        final CountDownLatch    done = new CountDownLatch(1);//空闲测试已经释放AudioRecord
+        int                     delayTime = THRESHOLD_DELAY;
+        float                   power = THRESHOLD_DB;
+        boolean                 hasFailed = true;
+    }
+
     private class RecordConfig{
         public int index;
         public int src;
@@ -453,6 +769,15 @@ public class BuyfullRecorder {
         public int delayTime;
         public int hasFailed;
         public String tag;
+        public float tries;//检测次数，越早的权重越低
+        public float decoded;//检测成功次数，权重同上
+        /**
+         * 排序用的检测成功率估计：检测次数少时接近测试分数getScore()/100，次数多了以实际检测结果为主
+         */
+        public float getRank(){
+            float prior = Math.max(0, getScore()) / 100;
+            return (decoded + prior * PRIOR_WEIGHT) / (tries + PRIOR_WEIGHT);
+        }
         public float getScore(){
             float fail_score = -hasFailed;
             if (fail_score < -10) {
@@ -490,13 +815,55 @@ public class BuyfullRecorder {
     private static final int RECORD_CHANNEL = 1;
     private static final int RECORD_BITS = 16;
 
-    private int _recordTestIndex = 0;
+    private int _recordTestIndex = 0;//_testOrder中已经测试了几个
+    private int _testOrder[];//测试录音源的顺序，上次最好的在最前面
+    private boolean _testGoodEnough = false;//已经测到了一个足够好的录音源，剩下的在检测之间空闲时再测
+    private volatile int _lastRecordIndex = -1;//正在录音（或最后一次录音）的录音源
+    private final Random _random = new Random();
+    private final byte[][] _recentBins = new byte[RECENT_BINS][];
+    private final int[] _recentBinSources = new int[RECENT_BINS];
+    private int _recentBinCursor = 0;
+    private long _lastDecodeSave = 0;
     private int _preferSampleRate = DEFAULT_RECORD_SAMPLE_RATE;
-    private volatile int _lastPCMSize = 0;
+    private volatile long _recordStartFrame = 0;//这次录音开始时环形缓冲区的位置
+    private volatile long _gapFrame = 0;//最后一次丢录音数据的位置，窗口不能跨过这里
+    private volatile int _captureBufferFrames = 0;
+    private volatile int _overrunCount = 0;//录音线程读得太慢，AudioRecord丢数据的次数
+    private volatile long _droppedFrames = 0;//估计丢掉的采样数
+    private volatile int _skippedWindows = 0;//算的时候被覆盖或者跨过丢数据的位置，没有回调的窗口数
     private volatile String _lastRecordSource = "";
     private volatile int _lastRecordPeriod = 0;
     private volatile int _lastRecordExpectSize = 0;
     private volatile long _lastRecordStartTime = -1;
+    private final HashMap<String, CrossCheckEngine> _crossChecks = new HashMap<String, CrossCheckEngine>();
+    private final ArrayList<RecordContext> _fetchWaiters = new ArrayList<RecordContext>();//只在通知线程使用
+    private final ArrayList<RecordContext> _activeContexts = new ArrayList<RecordContext>();//还没有最后回调的请求，只在通知线程使用
+    //最后算的一个BIN，同时有几个请求取到同一个窗口时只算一次，只在通知线程使用
+    private byte[] _sharedBin;
+    private long _sharedBinEnd = -1;
+    private int _sharedBinFrames = 0;
+    private String _sharedBinEngine;
+    private final AtomicLong _wakeFrame = new AtomicLong(Long.MAX_VALUE);//录音线程写到这个位置时通知
+    private SharedPreferences _preferences;//保存录音源测试结果，只在通知线程使用
+    private boolean _calibrationCached = false;//测试结果是读取的缓存，还没有用真正的录音验证过
+
+    private volatile float _currentDB = THRESHOLD_DB;
+    private volatile SourceTest _idleTest;//正在录音线程中进行的空闲测试，只在通知线程中改
+    private final AtomicReference<SourceTest> _idleTestQueue = new AtomicReference<SourceTest>();//等录音线程开始的空闲测试
+    //录音线程应该读的AudioRecord，开始录音后为_recorder，_doStop()时为null；读出错时录音线程只清掉它自己读的那一个
+    private final AtomicReference<AudioRecord> _capturing = new AtomicReference<AudioRecord>();
+    //以下只在录音线程使用
+    private int _zeroReads = 0;//连续read返回0的次数
+    private byte[] _meterTail;
+    private AudioRecord _meterRecord;
+    private long _meterStartFrame = 0;
+    private AudioRecord _clockRecord;
+    private AudioTimestamp _audioTimestamp;
+    private long _clockFrames = 0;//这次录音读到的采样数
+    private long _clockDropped = 0;//这次录音AudioRecord录到了但没有读到的采样数
+    private int _clockBufferFrames = 0;
+    private long _clockAnchorFrame = -1;//校准点的采样位置和时间
+    private long _clockAnchorNanos = 0;
 
     private void _initRecordConfig(){
         if (_recordConfigComparator != null)
@@ -511,11 +878,16 @@ public class BuyfullRecorder {
         _recordConfigs = new RecordConfig[RECORD_CONFIG_COUNT];
         _sortedConfigs = new RecordConfig[RECORD_CONFIG_COUNT];
 
+        _testOrder = new int[RECORD_CONFIG_COUNT];
         for (int index = 0;index < RECORD_CONFIG_COUNT;++index){
             _recordConfigs[index] = new RecordConfig();
             _recordConfigs[index].index = index;
             _recordConfigs[index].duration = TEST_PERIOD;
+            //还没有测试的录音源排在测试过的后面
+            _recordConfigs[index].power = THRESHOLD_DB;
+            _recordConfigs[index].delayTime = THRESHOLD_DELAY;
             _sortedConfigs[index] = _recordConfigs[index];
+            _testOrder[index] = index;
         }
 
         _recordConfigs[0].src = MediaRecorder.AudioSource.MIC;
@@ -537,8 +909,13 @@ public class BuyfullRecorder {
         _recordConfigComparator = new Comparator<RecordConfig>() {
             @Override
             public int compare(RecordConfig o1, RecordConfig o2) {
-                float score1 = o1.getScore();
-                float score2 = o2.getScore();
+                //打不开或者还没有测试的排在最后
+                boolean usable1 = o1.delayTime < THRESHOLD_DELAY;
+                boolean usable2 = o2.delayTime < THRESHOLD_DELAY;
+                if (usable1 != usable2)
+                    return usable1 ? -1 : 1;
+                float score1 = o1.getRank();
+                float score2 = o2.getRank();
                 if (score1 > score2)
                     return -1;
                 else if (score1 < score2)
@@ -550,34 +927,50 @@ public class BuyfullRecorder {
 
     private void _record(int source, int duration, final RecordContext cxt){
         if (_hasTestFinished()){
-            Message msg = _notifyThread.mHandler.obtainMessage(START_RECORD, source, duration,cxt);
+            Message msg = _notifyThread.handler().obtainMessage(START_RECORD, source, duration,cxt);
             msg.sendToTarget();
         }else{
-            Message msg = _notifyThread.mHandler.obtainMessage(START_TEST_RECORD, source, duration,cxt);
+            Message msg = _notifyThread.handler().obtainMessage(START_TEST_RECORD, source, duration,cxt);
             msg.sendToTarget();
         }
     }
 
-    private void _safeRecordCallBack(RecordContext cxt,final float dB,final byte[] pcm, int errorCode, Exception error, boolean finish){
+    private void _safeRecordCallBack(final RecordContext cxt,final float dB,final byte[] pcm, int errorCode, Exception error, boolean finish){
         try{
-            if (finish){
-                stop();
+            //连续检测时这些结果只是一个窗口的，回调后继续取下一个窗口
+            final boolean streaming = cxt.hop > 0 && (errorCode == NO_ERROR || errorCode == SIGNAL_DB_TOO_LOW || errorCode == RECORD_TIMEOUT);
+            if (!streaming){
+                _activeContexts.remove(cxt);
+            }
+            //还有其它请求在用录音时不停止，由最后一个返回的决定
+            if (finish && !streaming && _activeContexts.isEmpty()){
+                if (cxt.preRoll > 0 && (errorCode == NO_ERROR || errorCode == SIGNAL_DB_TOO_LOW)){
+                    //预录模式下先不停止，录音正常时继续录preRoll毫秒
+                    _keepRecording(cxt.preRoll);
+                }else{
+                    stop();
+                }
+                _scheduleCalibration();
             }
             if (DEBUG){
                 if (error != null){
                     Log.d(TAG,error.getLocalizedMessage());
                 }
             }
-            Handler handler = cxt.callbackHandler;
+            Executor executor = cxt.callbackExecutor;
             final RecordException re = (error == null)? null: new RecordException(errorCode, error);
             final JSONObject options = cxt.options;
             final IRecordCallback cb = cxt.callback;
 
-            cxt.callbackHandler = null;
-            cxt.options = null;
-            cxt.callback = null;
+            if (streaming){
+                cxt.inFlight.incrementAndGet();
+            }else{
+                cxt.callbackExecutor = null;
+                cxt.options = null;
+                cxt.callback = null;
+            }
 
-            handler.post(new Runnable() {
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -588,15 +981,24 @@ public class BuyfullRecorder {
                         }
                     }catch (Exception e){
                         e.printStackTrace();
+                    }finally {
+                        if (streaming && !cxt.ackWindows){
+                            _onStreamCallbackDone(cxt);
+                        }
                     }
                 }
             });
+            if (streaming){
+                _nextWindow(cxt);
+            }
         }catch (Exception e){
             e.printStackTrace();
         }
     }
 
     private void _doStop(){
+        //先让录音线程停下来，不再读这个AudioRecord
+        _capturing.set(null);
         if (_recorder == null)
             return;
 
@@ -617,23 +1019,50 @@ public class BuyfullRecorder {
         if (_lastBufferTimeStamp < 0){
             return true;
         }
-        if ((System.currentTimeMillis() - _lastBufferTimeStamp) > (cxt.validTimePeriod)){
+        if ((System.nanoTime() / 1000000L - _lastBufferTimeStamp) > (cxt.validTimePeriod)){
             return true;
         }
         return false;
     }
 
-    private void _doRecord(int source, int duration,final  RecordContext cxt){
-        if (!_hasTestFinished()){
-            _doTestRecord(source, duration, cxt);
-            return;
-        }
-        if (_recordStoped){
+    /**
+     * 保持录音period毫秒后停止，重复调用时从最后一次开始算
+     */
+    private void _keepRecording(long period){
+        Handler handler = _notifyThread.handler();
+        handler.removeMessages(PRE_ROLL_STOP);
+        handler.sendMessageDelayed(handler.obtainMessage(PRE_ROLL_STOP), period);
+    }
+
+    private void _doPreRoll(long period){
+        if (!_hasTestFinished())
+            return;
+        RecordConfig config = _recordConfigs[_sortedConfigs[0].index];
+        if (config.delayTime >= THRESHOLD_DELAY)
+            return;
+        Exception error = _startRecorder(config, config.src, config.duration);
+        if (error != null){
+            if (DEBUG)
+                Log.d(TAG, "pre roll fail: " + error.getLocalizedMessage());
+            return;
+        }
+        _keepRecording(period);
+    }
+
+    private void _doRecord(int source, int duration,final  RecordContext cxt){
+        //正在检测时不能被预录的定时停止
+        _notifyThread.handler().removeMessages(PRE_ROLL_STOP);
+        if (!_hasTestFinished()){
+            _doTestRecord(source, duration, cxt);
+            return;
+        }
+        if (_recordStoped){
             _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB, null, RECORD_STOPED, new Exception("record use:" + _lastRecordSource + " record stop"), cxt.stopAfterReturn);
             return;
         }
-        if (!_hasExpired(cxt) || isRecording()){
-            Message msg = _notifyThread.mHandler.obtainMessage(FETCH_BUFFER, cxt);
+        //正在录音，或者停止不久并且已经录好的够长，直接去取
+        if (isRecording() || (!_hasExpired(cxt) && _ring.written() >= _needFrame(cxt))){
+            Message msg = _notifyThread.handler().obtainMessage(FETCH_BUFFER, cxt);
             msg.sendToTarget();
             return;
         }
@@ -642,7 +1071,7 @@ public class BuyfullRecorder {
 
         int recordIndex = 0;
         if (audioSource < 0){
-            recordIndex = _sortedConfigs[0].index;
+            recordIndex = _chooseSource();
             audioSource = _recordConfigs[recordIndex].src;
             if (DEBUG)
                 Log.d("audio rec", "select audio: " + _recordConfigs[recordIndex].tag + " , power is: " + _recordConfigs[recordIndex].power);
@@ -654,29 +1083,49 @@ public class BuyfullRecorder {
         }
 
         if (config.delayTime >= THRESHOLD_DELAY){
+            _verifyCalibration(false);
             _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB,null,RECORD_FAIL  , new Exception("record use:"+ config.tag + " is not available"), true);
             return;
         }
 
+        Exception error = _startRecorder(config, audioSource, recordPeriod);
+        if (error != null){
+            _verifyCalibration(false);
+            _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB,null,RECORD_FAIL,error, true);
+            return;
+        }
+        //不再固定等1秒，录够了录音线程会通知
+        Message msg = _notifyThread.handler().obtainMessage(FETCH_BUFFER, cxt);
+        msg.sendToTarget();
+    }
+
+    /**
+     * 打开并开始录音，已经在录音时不做任何事
+     * @return 失败时返回错误，成功返回null
+     */
+    private Exception _startRecorder(RecordConfig config, int audioSource, int recordPeriod){
         if (_recorder == null){
+            //空闲测试还开着另一个AudioRecord，先让它放开
+            _stopIdleTest();
             _lastBufferTimeStamp = -1;
             try{
-                _recorder = new AudioRecord(audioSource, _preferSampleRate,AudioFormat.CHANNEL_IN_MONO,AudioFormat.ENCODING_PCM_16BIT,512 * 1024);
+                //缓冲区按延迟目标算，不小于系统要求的最小值
+                int bufferSize = Math.max(AudioRecord.getMinBufferSize(_preferSampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT),
+                        _preferSampleRate * CAPTURE_BUFFER_MS / 1000 * (RECORD_BITS / 8));
+                _recorder = new AudioRecord(audioSource, _preferSampleRate,AudioFormat.CHANNEL_IN_MONO,AudioFormat.ENCODING_PCM_16BIT,bufferSize);
+                _captureBufferFrames = bufferSize / (RECORD_BITS / 8);
                 if (_recorder.getState() != AudioRecord.STATE_INITIALIZED){
-                    _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB,null,RECORD_FAIL  ,new Exception("record use:"+ config.tag + " init failed1"), true);
-                    return;
+                    return new Exception("record use:"+ config.tag + " init failed1");
                 }
             }catch (Exception e){
-                _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB,null,RECORD_FAIL  ,  new Exception("record use:"+ config.tag + " init failed1"), true);
-                return;
+                return new Exception("record use:"+ config.tag + " init failed1");
             }
         }
         AudioRecord record = _recorder;
 
         int realSampleRate = record.getSampleRate();
         if (realSampleRate != _preferSampleRate){
-            _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB,null,RECORD_FAIL  ,  new Exception("record use:"+ config.tag + " init failed2"), true);
-            return;
+            return new Exception("record use:"+ config.tag + " init failed2");
         }
         if (record.getRecordingState() != RECORDSTATE_RECORDING){
             _lastBufferTimeStamp = -1;
@@ -693,255 +1142,550 @@ public class BuyfullRecorder {
                 }catch (Exception e2){
 
                 }
-                _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB,null,RECORD_FAIL,e, true);
-                return;
+                return e;
             }
             if (record.getRecordingState() != RECORDSTATE_RECORDING){
-                _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB,null,RECORD_FAIL,new Exception("record use:"+ config.tag + " init failed3"), true);
-                return;
+                return new Exception("record use:"+ config.tag + " init failed3");
             }
 
             _lastRecordStartTime = System.currentTimeMillis();
             _lastRecordSource = config.tag;
+            _lastRecordIndex = config.index;
             _lastRecordPeriod = recordPeriod;
-            _lastPCMSize = 0;
+            _recordStartFrame = _ring.written();
             int expectReadSize = (realSampleRate * recordPeriod * (RECORD_BITS / 8)) / 1000;
             if ((expectReadSize % 2) == 1)
                 --expectReadSize;
             _lastRecordExpectSize = expectReadSize;
+            _capturing.set(record);
+            _wakeCapture();
         }
-        Message msg = _notifyThread.mHandler.obtainMessage(FETCH_BUFFER, cxt);
-        _notifyThread.mHandler.sendMessageDelayed(msg,DEFAULT_VALID_TIME_PERIOD);
+        return null;
     }
 
-    private void _updateBuffer(AudioRecord record){
-        LooperThread thisThread = (LooperThread)Thread.currentThread();
-        byte[] _recordBuffer = new byte[RECORD_FETCH_FRAMES * 2 * RECORD_BITS / 8];
+    /**
+     * 在录音线程读一块录音，读出错时不再读这个AudioRecord，交给通知线程停止录音（见_onCaptureError）
+     */
+    private void _readBuffer(AudioRecord record){
+        int readSize = 0;
+        try {
+            //直接读到环形缓冲区里，不再另外分配和复制
+            readSize = record.read(_ring.buffer(), _ring.writeOffset(), _ring.writableSize());
+        }catch (Exception e){
+            if (DEBUG){
+                Log.d(TAG, "read fail: " + e.getLocalizedMessage());
+            }
+            readSize = -1;
+        }
+        if (readSize == 0 && _capturing.get() == record){
+            //没有读到数据，等一下再读，一直读不到时当作出错
+            if (++_zeroReads < MAX_ZERO_READS){
+                try {
+                    Thread.sleep(ZERO_READ_BACKOFF_MS);
+                }catch (InterruptedException e){
 
-        if (!isRecording() || record == null){
-            if (DEBUG)
-                Log.d("audio rec", "audio recorder update buffer empty return");
-            Message msg = _recordThread.mHandler.obtainMessage(UPDATE_BUFFER);
-            _recordThread.mHandler.sendMessageDelayed(msg, 1000);
+                }
+                return;
+            }
+            readSize = -1;
+        }
+        if (readSize < 0){
+            //error：_recorder只在通知线程停止和释放，这里只清掉自己读的这一个，
+            //已经被_doStop()清掉（或换成了新的）时通知线程已经处理过，不再通知
+            if (_capturing.compareAndSet(record, null)){
+                _notifyThread.handler().obtainMessage(FETCH_READY, record).sendToTarget();
+            }
             return;
         }
+        if (readSize == 0){
+            //录音被停止
+            return;
+        }
+        _zeroReads = 0;
 
-        int expect_size = (int)(RECORD_FETCH_FRAMES * RECORD_BITS / 8);
+        long timeStamp = _sampleTime(record, readSize);
+        float dB = _updateLevel(record, readSize);
+        _ring.commit(readSize, timeStamp, dB);
+        _lastBufferTimeStamp = timeStamp;
+        long wake = _wakeFrame.get();
+        if (_ring.written() >= wake && _wakeFrame.compareAndSet(wake, Long.MAX_VALUE)){
+            //有请求在等这个位置的数据
+            _notifyThread.handler().obtainMessage(FETCH_READY).sendToTarget();
+        }
+    }
 
-        int readSize = 0;
-        try {
-            readSize = record.read(_recordBuffer, 0, expect_size);
-            if (readSize < 0){
-                //error
-                _doStop();
-                Message msg = _recordThread.mHandler.obtainMessage(UPDATE_BUFFER);
-                _recordThread.mHandler.sendMessageDelayed(msg, 1000);
-                return;
+    /**
+     * 这块最后一个采样录到的时间（System.nanoTime()的毫秒）：按这次录音录到的采样数推算，不受读的时候早晚影响。
+     * 能用AudioRecord.getTimestamp时每块都用它校准，否则以第一块读到的时间为准。
+     * 按校准点推算出现在已经录到的采样数，比读到的多出了整个AudioRecord缓冲区时，说明中间丢了数据，
+     * 记下这块开头的位置，之后的窗口从这里开始取
+     */
+    @SuppressLint("NewApi")
+    private long _sampleTime(AudioRecord record, int readSize){
+        long now = System.nanoTime();
+        boolean first = (record != _clockRecord);
+        if (first){
+            _clockRecord = record;
+            _clockFrames = 0;
+            _clockDropped = 0;
+            _clockAnchorFrame = -1;
+            _clockBufferFrames = _captureBufferFrames;
+            if (Build.VERSION.SDK_INT >= 23){
+                try {
+                    _clockBufferFrames = Math.max(_clockBufferFrames, record.getBufferSizeInFrames());
+                }catch (Exception e){
+
+                }
             }
+        }
+        _clockFrames += readSize;
+        if (Build.VERSION.SDK_INT >= 24){
+            if (_audioTimestamp == null){
+                _audioTimestamp = new AudioTimestamp();
+            }
+            try {
+                if (record.getTimestamp(_audioTimestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS){
+                    _clockAnchorFrame = _audioTimestamp.framePosition;
+                    _clockAnchorNanos = _audioTimestamp.nanoTime;
+                }
+            }catch (Exception e){
 
-        }catch (Exception e){
-            e.printStackTrace();
-            _doStop();
-            Message msg = _recordThread.mHandler.obtainMessage(UPDATE_BUFFER);
-            _recordThread.mHandler.sendMessageDelayed(msg, 1000);
-            return;
+            }
+        }
+        if (_clockAnchorFrame < 0){
+            _clockAnchorFrame = _clockFrames;
+            _clockAnchorNanos = now;
         }
 
-        RecordData recordData = new RecordData();
-        recordData.data = new byte[readSize];
-        recordData.timeStamp = System.currentTimeMillis();
-        System.arraycopy(_recordBuffer,0, recordData.data,0, readSize);
-        if (_tempRecordBuffer.size() > 15){
-            _tempRecordBuffer.poll();
+        long captured = _clockAnchorFrame + (now - _clockAnchorNanos) * _preferSampleRate / 1000000000L;
+        long backlog = captured - (_clockFrames + _clockDropped);
+        if (first){
+            //getTimestamp的位置不一定从这次录音开始算，第一块多出来的不算丢数据
+            if (backlog > _clockBufferFrames){
+                _clockDropped = backlog;
+            }
+        }else if (backlog > _clockBufferFrames + RECORD_FETCH_FRAMES){
+            long dropped = backlog - _clockBufferFrames;
+            _clockDropped += dropped;
+            _droppedFrames += dropped;
+            ++_overrunCount;
+            _gapFrame = _ring.written();
+            if (DEBUG){
+                Log.d(TAG, "record overrun, dropped " + dropped + " frames");
+            }
         }
-        _tempRecordBuffer.add(recordData);
+        return (_clockAnchorNanos + (_clockFrames + _clockDropped - _clockAnchorFrame) * 1000000000L / _preferSampleRate) / 1000000L;
+    }
 
-        Message msg = _recordThread.mHandler.obtainMessage(UPDATE_BUFFER);
-        _recordThread.mHandler.sendMessage(msg);
+    /**
+     * 开始录音后马上唤醒录音线程
+     */
+    private void _wakeCapture(){
+        _captureThread.wake();
     }
 
-    private void _mergeBuffer(RecordData recordData){
-        int readSize = recordData.data.length;
+    /**
+     * 流式电平表：每读到一块录音（readSize帧已经写进环形缓冲区，还没有commit），就取出以这块结尾的2048帧算带内分贝，
+     * 结果与对以这块结尾的数据调用getDB(..., isLastFrame = true)相同。
+     * 一块4096帧只需要一次2048点的带内计算，这次录音开始后还不满2048帧时返回NaN
+     */
+    private float _updateLevel(AudioRecord record, int readSize){
+        if (_meterTail == null){
+            _meterTail = new byte[TEST_FETCH_FRAMES * RECORD_CHANNEL * (RECORD_BITS / 8)];
+        }
+        if (record != _meterRecord){
+            _meterRecord = record;
+            _meterStartFrame = _ring.written();
+        }
+        if (_ring.written() + readSize - _meterStartFrame < TEST_FETCH_FRAMES)
+            return Float.NaN;
 
-        _lastBufferTimeStamp = recordData.timeStamp;
-        if ((_lastPCMSize + readSize) >= _recordBuffer.length) {
-            //trim last half pcm data
-            int leftSize = _recordBuffer.length / 2 - readSize;
-            System.arraycopy(_recordBuffer, _lastPCMSize - leftSize, _recordBuffer, 0, leftSize);
-            _lastPCMSize = leftSize;
+        _ring.copyTail(readSize, TEST_FETCH_FRAMES, _meterTail);
+        try {
+            float dB = BuyfullDsp.getDB(_meterTail, _meterTail.length, DEFAULT_RECORD_SAMPLE_RATE, RECORD_CHANNEL, RECORD_BITS, true, false);
+            _currentDB = dB;
+            return dB;
+        }catch (Exception e){
+            if (DEBUG){
+                e.printStackTrace();
+            }
+            return Float.NaN;
         }
-        System.arraycopy(recordData.data,0,_recordBuffer,_lastPCMSize,readSize);
-        _lastPCMSize += readSize;
     }
 
     private void _fetchBuffer(final RecordContext cxt){
-        int expectReadSize = _lastRecordExpectSize;
-        byte[] result = null;
         if (_recordStoped){
             _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB, null, RECORD_STOPED, new Exception("record use:" + _lastRecordSource + " record stop"), cxt.stopAfterReturn);
             return;
         }
-        Object[] datas = _tempRecordBuffer.toArray();
+        if (cxt.hop > 0 && cxt.inFlight.get() >= STREAM_MAX_IN_FLIGHT){
+            //回调处理不过来，等处理完再取最新的窗口，中间的窗口不算
+            cxt.blocked = true;
+            return;
+        }
+        int frames = _expectFrames();
+        long endFrame = _ring.written();
+        long needFrame = _needFrame(cxt);
+        boolean recording = isRecording();
 
-        for (int index = 0;index < datas.length;++index){
-            RecordData data = (RecordData)datas[index];
-            if (data.timeStamp <= _lastBufferTimeStamp){
-                continue;
+        if (!recording && (_hasExpired(cxt) || endFrame < needFrame)) {
+            //没有在录音，已经录好的也不能用，重新开始录音
+            _doRecord(-1, -1, cxt);
+            return;
+        }
+        if (recording && _hasExpired(cxt)){
+            //刚开始录音或者有一段时间没有新数据，至少等下一块
+            needFrame = Math.max(needFrame, endFrame + 1);
+        }
+        if (endFrame < needFrame){
+            if (_gapFrame > _recordStartFrame && endFrame - frames < _gapFrame
+                    && endFrame >= Math.max(_recordStartFrame + frames, cxt.minEndFrame)){
+                //本来可以取的窗口中间丢了数据，跳过去等丢数据之后录够一个窗口
+                ++_skippedWindows;
             }
-            _mergeBuffer(data);
+            _waitForFrame(cxt, needFrame);
+            return;
         }
 
-        if ((_hasExpired(cxt) && isRecording()) || (_lastPCMSize < expectReadSize)) {
-            //if record buffer is out dated or not enough, we should wait or timeout
-            if ((System.currentTimeMillis() - cxt.timeStamp) > cxt.timeOut) {
-                _doStop();
-                _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB, null, RECORD_TIMEOUT, new Exception("record use:" + _lastRecordSource + " record time out"), cxt.stopAfterReturn);
-                return;
-            } else {
-                Message msg = _notifyThread.mHandler.obtainMessage(FETCH_BUFFER, cxt);
-                _notifyThread.mHandler.sendMessageDelayed(msg, DEFAULT_VALID_TIME_PERIOD / 5);
-                return;
+        if (cxt.preRoll > 0 && endFrame - frames < cxt.requestFrame && !_preRollLoudEnough(cxt, endFrame)){
+            //预录的声音分贝不够，可能是请求之前还没有开始播放，等一段请求之后的新录音
+            cxt.minEndFrame = Math.max(cxt.minEndFrame, cxt.requestFrame + frames);
+            _waitForFrame(cxt, cxt.minEndFrame);
+            return;
+        }
+        PcmWindow window = _ring.window(endFrame - frames, frames);
+        if (window == null || !_processAndReturn(cxt, window, endFrame)){
+            //计算时被录音线程覆盖了，用下一块之后的数据再算
+            ++_skippedWindows;
+            _waitForFrame(cxt, endFrame + 1);
+        }
+    }
+
+    private int _expectFrames(){
+        return _lastRecordExpectSize / (RECORD_CHANNEL * (RECORD_BITS / 8));
+    }
+
+    /**
+     * 窗口结尾至少要录到的位置：从这次录音开始（或者最后一次丢数据）之后连续录够一个窗口，并且不早于cxt.minEndFrame
+     */
+    private long _needFrame(RecordContext cxt){
+        return Math.max(Math.max(_recordStartFrame, _gapFrame) + _expectFrames(), cxt.minEndFrame);
+    }
+
+    /**
+     * 等录音线程写到frame的位置再取，不轮询：录音线程写到时发FETCH_READY，
+     * 超时由一个在cxt.timeStamp + cxt.timeOut发出的FETCH_TIMEOUT处理
+     */
+    private void _waitForFrame(RecordContext cxt, long frame){
+        cxt.waitFrame = frame;
+        if (!_fetchWaiters.contains(cxt)){
+            _fetchWaiters.add(cxt);
+            cxt.waitStartFrame = _ring.written();
+            long remain = cxt.timeOut - (System.currentTimeMillis() - cxt.timeStamp);
+            Handler handler = _notifyThread.handler();
+            handler.sendMessageDelayed(handler.obtainMessage(FETCH_TIMEOUT, cxt), Math.max(0, remain));
+        }
+        _updateWakeFrame();
+    }
+
+    private void _updateWakeFrame(){
+        long wake = Long.MAX_VALUE;
+        for (RecordContext cxt : _fetchWaiters){
+            wake = Math.min(wake, cxt.waitFrame);
+        }
+        _wakeFrame.set(wake);
+        //设置之前录音线程可能已经写过了
+        if (_ring.written() >= wake){
+            _notifyThread.handler().obtainMessage(FETCH_READY).sendToTarget();
+        }
+    }
+
+    /**
+     * 录音线程写到了等待的位置（all为true时是录音停止或出错），重新取等到了的请求
+     */
+    private void _onFetchReady(boolean all){
+        if (_fetchWaiters.isEmpty())
+            return;
+        long written = _ring.written();
+        Object[] waiters = _fetchWaiters.toArray();
+        for (int index = 0;index < waiters.length;++index){
+            RecordContext cxt = (RecordContext) waiters[index];
+            if (all || cxt.waitFrame <= written){
+                _fetchWaiters.remove(cxt);
+                _notifyThread.handler().removeMessages(FETCH_TIMEOUT, cxt);
+            }else{
+                waiters[index] = null;
             }
         }
+        _updateWakeFrame();
+        for (int index = 0;index < waiters.length;++index){
+            if (waiters[index] != null){
+                _fetchBuffer((RecordContext) waiters[index]);
+            }
+        }
+    }
 
-        if (!isRecording() && !_recordStoped) {
-//            Log.d(TAG,"DEBUG2");
-            _doRecord(-1, -1, cxt);
+    /**
+     * 录音线程读record出错：record还是当前的_recorder时停止录音，让等待的请求重新打开；
+     * 已经停止或者重新打开过时，出错的是旧的AudioRecord，不影响新的录音
+     */
+    private void _onCaptureError(AudioRecord record){
+        if (_recorder != record)
+            return;
+        _doStop();
+        _onFetchReady(true);
+    }
+
+    private void _onFetchTimeout(RecordContext cxt){
+        if (!_fetchWaiters.remove(cxt))
             return;
+        _updateWakeFrame();
+        //等待期间一帧都没有录到才是录音坏了，停止后重新打开。
+        //还在录的话只是这个请求没等到它要的窗口，不影响共用录音的其它请求
+        boolean dead = _ring.written() <= cxt.waitStartFrame;
+        if (dead){
+            _doStop();
+            _verifyCalibration(false);
+        }
+        _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB, null, RECORD_TIMEOUT, new Exception("record use:" + _lastRecordSource + " record time out"), cxt.stopAfterReturn);
+        if (dead){
+            //其它还在等的请求重新打开录音
+            _onFetchReady(true);
         }
+    }
 
-//        Log.d(TAG, "Buffer time stamp: " + _lastBufferTimeStamp);
-        result = new byte[expectReadSize];
-        System.arraycopy(_recordBuffer, _lastPCMSize - expectReadSize, result, 0, expectReadSize);
+    private void _doCancel(JSONObject options){
+        RecordContext cxt = null;
+        for (RecordContext active : _activeContexts){
+            if (active.options == options){
+                cxt = active;
+                break;
+            }
+        }
+        //已经回调了最后结果
+        if (cxt == null)
+            return;
+        Handler handler = _notifyThread.handler();
+        handler.removeMessages(FETCH_BUFFER, cxt);
+        handler.removeMessages(FETCH_TIMEOUT, cxt);
+        handler.removeMessages(STREAM_READY, cxt);
+        if (_fetchWaiters.remove(cxt)){
+            _updateWakeFrame();
+        }
+        //连续检测一直在录音，取消后没有其它请求时停止
+        _safeRecordCallBack(cxt, DEFAULT_LIMIT_DB, null, RECORD_STOPED, new Exception("record use:" + _lastRecordSource + " record cancelled"), cxt.stopAfterReturn || cxt.hop > 0);
+    }
 
-        _processAndReturn(cxt, result);
+    private void _addActive(RecordContext cxt){
+        if (!_activeContexts.contains(cxt)){
+            _activeContexts.add(cxt);
+        }
     }
 
-    private void _processAndReturn(RecordContext cxt, byte[] pcm){
+    /**
+     * 连续检测：下一个窗口的结尾至少比这次晚hop，超时从现在开始算。
+     * 因为录音坏了超时时录音已经停止，_fetchBuffer会重新打开
+     */
+    private void _nextWindow(RecordContext cxt){
+        cxt.timeStamp = System.currentTimeMillis();
+        cxt.minEndFrame = cxt.lastEndFrame + cxt.hop * DEFAULT_RECORD_SAMPLE_RATE / 1000;
+        _notifyThread.handler().obtainMessage(FETCH_BUFFER, cxt).sendToTarget();
+    }
+
+    /**
+     * 连续检测的一个窗口处理完了，在回调的线程调用，ackWindows时在通知线程调用
+     */
+    private void _onStreamCallbackDone(RecordContext cxt){
+        if (cxt.inFlight.decrementAndGet() < STREAM_MAX_IN_FLIGHT){
+            _notifyThread.handler().obtainMessage(STREAM_READY, cxt).sendToTarget();
+        }
+    }
+
+    private void _onWindowDone(JSONObject options){
+        for (RecordContext cxt : _activeContexts){
+            if (cxt.options == options){
+                if (cxt.ackWindows){
+                    _onStreamCallbackDone(cxt);
+                }
+                return;
+            }
+        }
+    }
+
+    private void _onStreamReady(RecordContext cxt){
+        //已经取消了的请求callback为空
+        if (!cxt.blocked || cxt.callback == null)
+            return;
+        cxt.blocked = false;
+        _fetchBuffer(cxt);
+    }
+
+    /**
+     * 用录音线程算好的电平检查以endFrame结尾的窗口开头和结尾的分贝，没有电平记录时当作够
+     */
+    private boolean _preRollLoudEnough(RecordContext cxt, long endFrame){
+        float lastDB = _ring.levelAt(endFrame, 0);
+        float startDB = _ring.levelAt(endFrame - DEFAULT_RECORD_SAMPLE_RATE, RECORD_FETCH_FRAMES / 2);
+        if (!Float.isNaN(lastDB) && lastDB < cxt.limitDB)
+            return false;
+        if (!Float.isNaN(startDB) && startDB < cxt.limitDB)
+            return false;
+        return true;
+    }
+
+    /**
+     * 直接在环形缓冲区上算分贝和BIN并回调，pcm在计算过程中被录音线程覆盖时不回调，返回false
+     */
+    private boolean _processAndReturn(RecordContext cxt, PcmWindow pcm, long endFrame){
+        cxt.lastEndFrame = endFrame;
         float dB = DEFAULT_LIMIT_DB;
-        int expectReadSize = pcm.length;
+        long startFrame = endFrame - pcm.frames();
+        DspEngine engine = _engineFor(cxt);
+        //优先用录音线程已经算好的电平，pcm的结尾就是endFrame那一块的结尾
+        float lastDB = _ring.levelAt(endFrame, 0);
         try {
-            dB = getDB(pcm, expectReadSize, DEFAULT_RECORD_SAMPLE_RATE, RECORD_CHANNEL, RECORD_BITS, true);
+            dB = Float.isNaN(lastDB) ? engine.getDB(pcm, DEFAULT_RECORD_SAMPLE_RATE, true) : lastDB;
         } catch (Exception e) {
             if (DEBUG){
                 e.printStackTrace();
             }
             _safeRecordCallBack(cxt,dB,null,SIGNAL_DB_TOO_LOW  ,  new Exception("record use:"+ _lastRecordSource + " get dB fail"), true);
-            return;
+            return true;
         }
+        //录到了声音（或者完全没有声音），可以判断缓存的测试结果是否还能用
+        _verifyCalibration(dB != THRESHOLD_DB);
         if (dB == THRESHOLD_DB){
             _safeRecordCallBack(cxt,dB,null,NO_RECORD_PERMISSION  ,  new Exception("record use:"+ _lastRecordSource + " get dB fail"), true);
-            return;
+            return true;
         }else if (dB < cxt.limitDB){
             _safeRecordCallBack(cxt,dB,null,SIGNAL_DB_TOO_LOW  ,  new Exception("record use:"+ _lastRecordSource + " get dB fail"), true);
-            return;
+            return true;
         }
 
         float pcmDB_start = 0;
+        //开头的分贝取结尾往前1秒的位置，按块算的电平位置可能差半块以内
+        float startDB = _ring.levelAt(endFrame - DEFAULT_RECORD_SAMPLE_RATE, RECORD_FETCH_FRAMES / 2);
         try {
-            pcmDB_start = getDB(pcm, expectReadSize, DEFAULT_RECORD_SAMPLE_RATE, RECORD_CHANNEL, RECORD_BITS, false);
+            pcmDB_start = Float.isNaN(startDB) ? engine.getDB(pcm, DEFAULT_RECORD_SAMPLE_RATE, false) : startDB;
         } catch (Exception e) {
             if (DEBUG){
                 e.printStackTrace();
             }
             _safeRecordCallBack(cxt,dB,null,SIGNAL_DB_TOO_LOW  ,  new Exception("record use:"+ _lastRecordSource + " get dB fail"), true);
-            return;
+            return true;
         }
         if (pcmDB_start == THRESHOLD_DB){
             _safeRecordCallBack(cxt,pcmDB_start,null,NO_RECORD_PERMISSION  ,  new Exception("record use:"+ _lastRecordSource + " get dB fail"), true);
-            return;
+            return true;
         }else if (pcmDB_start < cxt.limitDB){
             _safeRecordCallBack(cxt,pcmDB_start,null,SIGNAL_DB_TOO_LOW  ,  new Exception("record use:"+ _lastRecordSource + " get dB fail"), true);
-            return;
+            return true;
         }
 
         byte[] binData = null;
-        if (pcm != null){
+        boolean shared = false;
+        if (endFrame == _sharedBinEnd && pcm.frames() == _sharedBinFrames && cxt.engine.equals(_sharedBinEngine)){
+            //别的请求刚算过同一个窗口
+            binData = _sharedBin;
+            shared = true;
+        }else{
             try {
-                binData = buildBin(pcm, DEFAULT_RECORD_SAMPLE_RATE, _lastRecordPeriod,RECORD_CHANNEL,RECORD_BITS);
+                binData = buildBin(engine, pcm, startFrame, DEFAULT_RECORD_SAMPLE_RATE, _lastRecordPeriod);
             } catch (Exception e) {
                 if (DEBUG){
                     e.printStackTrace();
                 }
                 _safeRecordCallBack(cxt,(dB + pcmDB_start) / 2,null,SIGNAL_DB_TOO_LOW  ,  new Exception("record use:"+ _lastRecordSource + " get dB fail"), true);
-                return;
+                return true;
             }
         }
+        if (!_ring.isValid(startFrame))
+            return false;
 
+        if (!shared){
+            _sharedBin = binData;
+            _sharedBinEnd = endFrame;
+            _sharedBinFrames = pcm.frames();
+            _sharedBinEngine = cxt.engine;
+            //同一个BIN只记一次录音源，几个请求都上传时只算一次检测结果
+            _rememberBinSource(binData, _lastRecordIndex);
+        }
         _safeRecordCallBack(cxt,(dB + pcmDB_start) / 2,binData,NO_ERROR, null, cxt.stopAfterReturn);
-
+        return true;
     }
 
     private void _doTestRecord(int source, int duration,final  RecordContext cxt){
-        int audioSource = source;
-        int recordPeriod = duration;
-
         int recordIndex = 0;
-        if (audioSource < 0){
-            recordIndex = _recordTestIndex;
-            audioSource = _recordConfigs[recordIndex].src;
-        }
-        if (recordPeriod <= 0){
-            recordPeriod = _recordConfigs[recordIndex].duration;
+        if (source < 0){
+            recordIndex = _testOrder[_recordTestIndex];
         }
-        RecordConfig config = _recordConfigs[recordIndex];
-        AudioRecord record = null;
+        _testSource(recordIndex, source, duration, _engineFor(cxt));
+        _record(source, duration, cxt);
+    }
 
-        try{
-            record = new AudioRecord(audioSource, _preferSampleRate,AudioFormat.CHANNEL_IN_MONO,AudioFormat.ENCODING_PCM_16BIT, 10 *1024);
-            if (record.getState() != AudioRecord.STATE_INITIALIZED){
-                _setTestResult(THRESHOLD_DELAY,THRESHOLD_DB,true);
-                _record(source, duration, cxt);
-                return;
-            }
+    /**
+     * 测试一个录音源：录到3次足够的分贝或者录满duration（<=0时用测试时长）为止，结果记到_testOrder中的下一个
+     */
+    private void _testSource(int recordIndex, int source, int duration, DspEngine engine){
+        _stopIdleTest();
+        SourceTest test = _newSourceTest(recordIndex, source, duration);
+        _measureSource(test, engine, _testBuffer);
+        _setTestResult(test.delayTime, test.power, test.hasFailed);
+    }
 
-        }catch (Exception e){
-            _setTestResult(THRESHOLD_DELAY,THRESHOLD_DB,true);
-            _record(source, duration, cxt);
-            return;
-        }
+    private SourceTest _newSourceTest(int recordIndex, int source, int duration){
+        SourceTest test = new SourceTest();
+        test.testIndex = _recordTestIndex;
+        test.audioSource = (source < 0) ? _recordConfigs[recordIndex].src : source;
+        test.recordPeriod = (duration <= 0) ? _recordConfigs[recordIndex].duration : duration;
+        return test;
+    }
 
-        int realSampleRate = record.getSampleRate();
-        if (realSampleRate != _preferSampleRate){
-            _setTestResult(THRESHOLD_DELAY,THRESHOLD_DB,true);
-            _record(source, duration, cxt);
+    /**
+     * 打开test指定的录音源录一段，结果写回test。可以在通知线程或录音线程中调用，
+     * 不改测试状态；test.aborted时在两次read之间放弃
+     */
+    private void _measureSource(SourceTest test, DspEngine engine, byte[] buffer){
+        if (test.aborted)
             return;
-        }
+        AudioRecord record = null;
         try{
+            record = new AudioRecord(test.audioSource, _preferSampleRate,AudioFormat.CHANNEL_IN_MONO,AudioFormat.ENCODING_PCM_16BIT, 10 *1024);
+            if (record.getState() != AudioRecord.STATE_INITIALIZED){
+                return;
+            }
+            int realSampleRate = record.getSampleRate();
+            if (realSampleRate != _preferSampleRate){
+                return;
+            }
             record.startRecording();
-        }catch (Exception e){
-            _setTestResult(THRESHOLD_DELAY,THRESHOLD_DB,true);
-            _record(source, duration, cxt);
-            return;
-        }
-
-        if (record.getRecordingState() != RECORDSTATE_RECORDING){
-            _setTestResult(THRESHOLD_DELAY,THRESHOLD_DB,true);
-            _record(source, duration, cxt);
-            return;
-        }
+            if (record.getRecordingState() != RECORDSTATE_RECORDING){
+                return;
+            }
 
-        long startTimeStamp = System.currentTimeMillis();
+            long startTimeStamp = System.currentTimeMillis();
 
-        int readsize = 0;
-        int offset = 0;
-        float lastDB = 0;
-        float totalDB = 0;
-        float loudestDB = -9999999;
-        int loudestDBOffset = 0;
-        int dBCount = 0;
-        int validDBCount = 0;
-        int READ_SIZE = TEST_FETCH_FRAMES * RECORD_CHANNEL * (RECORD_BITS / 8);
+            int readsize = 0;
+            int offset = 0;
+            float lastDB = 0;
+            float totalDB = 0;
+            float loudestDB = -9999999;
+            int loudestDBOffset = 0;
+            int dBCount = 0;
+            int validDBCount = 0;
+            int READ_SIZE = TEST_FETCH_FRAMES * RECORD_CHANNEL * (RECORD_BITS / 8);
 
-        while ((System.currentTimeMillis() - startTimeStamp) < recordPeriod){
-            try{
-                readsize = record.read(_recordBuffer,0, READ_SIZE);
+            while ((System.currentTimeMillis() - startTimeStamp) < test.recordPeriod){
+                if (test.aborted){
+                    return;
+                }
+                readsize = record.read(buffer,0, READ_SIZE);
                 if (readsize <= 0){
                     offset = readsize;
                     break;
                 }
                 offset += readsize;
-                lastDB = getDB(_recordBuffer, READ_SIZE, realSampleRate,RECORD_CHANNEL,RECORD_BITS,true);
+                lastDB = engine.getDB(buffer, READ_SIZE, realSampleRate,RECORD_CHANNEL,RECORD_BITS,true);
                 totalDB += lastDB;
                 ++dBCount;
                 if (lastDB > DEFAULT_LIMIT_DB){
@@ -954,55 +1698,70 @@ public class BuyfullRecorder {
                         break;
                     }
                 }
-            }catch (Exception e){
-                e.printStackTrace();
-                offset = -1;
-                break;
             }
-        }
-        try {
-            record.stop();
+            if (offset >= 0 && validDBCount > 0){
+                lastDB = totalDB / dBCount;
+                test.delayTime = loudestDBOffset * 1000 / realSampleRate;
+                test.power = lastDB > loudestDB? lastDB : loudestDB;
+                test.hasFailed = false;
+            }
         }catch (Exception e){
+            if (DEBUG){
+                Log.d(TAG, "test source fail: " + e.getLocalizedMessage());
+            }
+        }finally {
+            //每条失败的路径都要释放，空闲测试会反复测同一个打不开的录音源
+            if (record != null){
+                try {
+                    record.stop();
+                }catch (Exception e){
 
-        }
-        try {
-            record.release();
-        }catch (Exception e){
+                }
+                try {
+                    record.release();
+                }catch (Exception e){
 
+                }
+            }
         }
-        if (offset < 0 || validDBCount <= 0){
-            _setTestResult(THRESHOLD_DELAY,THRESHOLD_DB,true);
-        }else{
-            lastDB = totalDB / dBCount;
-            _setTestResult(loudestDBOffset * 1000 / realSampleRate,lastDB > loudestDB? lastDB : loudestDB,false);
-        }
-        _record(source, duration, cxt);
     }
 
+    /**
+     * 已经可以选出录音源：所有录音源都测试过，或者已经测到一个足够好的
+     */
     private boolean _hasTestFinished(){
-        if (_recordTestIndex == RECORD_CONFIG_COUNT)
+        if (_recordTestIndex == RECORD_CONFIG_COUNT || _testGoodEnough)
             return true;
 
         return false;
     }
 
+    private boolean _hasTestedAll(){
+        return _recordTestIndex == RECORD_CONFIG_COUNT;
+    }
+
     private boolean _setTestResult(int delayTime, float power, boolean hasFailed){
-        if (_hasTestFinished())
+        if (_hasTestedAll())
             return true;
 
-        _recordConfigs[_recordTestIndex].delayTime = delayTime;
-        _recordConfigs[_recordTestIndex].power = power;
-        _recordConfigs[_recordTestIndex].duration = RECORD_PERIOD + ((delayTime * 100) / 100);
+        RecordConfig config = _recordConfigs[_testOrder[_recordTestIndex]];
+        config.delayTime = delayTime;
+        config.power = power;
+        config.duration = RECORD_PERIOD + ((delayTime * 100) / 100);
 
         if (power <= THRESHOLD_DB)
             hasFailed = true;
 
         if (hasFailed)
-            ++_recordConfigs[_recordTestIndex].hasFailed;
+            ++config.hasFailed;
         else
-            _recordConfigs[_recordTestIndex].hasFailed = 0;
+            config.hasFailed = 0;
 
         ++_recordTestIndex;
+        if (config.getScore() >= GOOD_ENOUGH_SCORE){
+            //足够好，不用等剩下的录音源测完
+            _testGoodEnough = true;
+        }
 
         if (_hasTestFinished()){
             if (DEBUG){
@@ -1012,16 +1771,301 @@ public class BuyfullRecorder {
             }
 
             Arrays.sort(_sortedConfigs, _recordConfigComparator);
+            _saveCalibration();
         }
         return _hasTestFinished();
     }
 
+    /**
+     * 检测返回后，如果还有录音源没有测试，空闲一段时间后测试下一个
+     */
+    private void _scheduleCalibration(){
+        if (!_hasTestFinished() || _hasTestedAll())
+            return;
+        Handler handler = _notifyThread.handler();
+        handler.removeMessages(CALIBRATE_NEXT);
+        handler.sendMessageDelayed(handler.obtainMessage(CALIBRATE_NEXT), CALIBRATE_IDLE_DELAY);
+    }
+
+    /**
+     * 在检测之间测试一个剩下的录音源。测试在没有录音的录音线程中进行，不占用通知线程，
+     * 测试期间来了检测时由_startRecorder()先停止测试，只多等一次read。正在录音（预录、连续检测）时等录音停止
+     */
+    private void _calibrateNext(){
+        if (!_hasTestFinished() || _hasTestedAll() || _idleTest != null)
+            return;
+        if (_recorder != null || !_fetchWaiters.isEmpty()){
+            _scheduleCalibration();
+            return;
+        }
+        SourceTest test = _newSourceTest(_testOrder[_recordTestIndex], -1, -1);
+        _idleTest = test;
+        _idleTestQueue.set(test);
+        _wakeCapture();
+    }
+
+    /**
+     * 在录音线程中运行空闲测试，完成后交回通知线程记录结果
+     */
+    private void _runIdleTest(SourceTest test){
+        try {
+            _measureSource(test, DspEngines.reference(), new byte[_testBuffer.length]);
+        }finally {
+            test.done.countDown();
+        }
+        _notifyThread.handler().obtainMessage(CALIBRATE_RESULT, test).sendToTarget();
+    }
+
+    private void _onIdleTestResult(SourceTest test){
+        if (_idleTest != test)
+            return;
+        _idleTest = null;
+        //测试期间测试状态被重置（比如重新读取缓存）时丢掉结果
+        if (!test.aborted && _hasTestFinished() && !_hasTestedAll() && _recordTestIndex == test.testIndex){
+            _setTestResult(test.delayTime, test.power, test.hasFailed);
+            if (DEBUG)
+                Log.d(TAG, "calibrate next, prefer: " + _sortedConfigs[0].tag);
+        }
+        _scheduleCalibration();
+    }
+
+    /**
+     * 停止空闲测试并等它放开麦克风，最多等一次read。还没开始的测试直接取消
+     */
+    private void _stopIdleTest(){
+        SourceTest test = _idleTest;
+        if (test == null)
+            return;
+        _idleTest = null;
+        test.aborted = true;
+        if (_idleTestQueue.compareAndSet(test, null))
+            return;
+        try {
+            //录音线程退出时不会再count down，不能一直等
+            test.done.await(TEST_PERIOD, TimeUnit.MILLISECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 打开录音时选录音源：大多数时候用排名第一的，偶尔（EXPLORE_RATE）随机试一个其他能用的，
+     * 这样排名靠后的录音源也会有检测结果，实际检测效果变好时能排上来
+     */
+    private int _chooseSource(){
+        RecordConfig best = _sortedConfigs[0];
+        if (_random.nextFloat() >= EXPLORE_RATE)
+            return best.index;
+        int count = 0;
+        for (int index = 1;index < RECORD_CONFIG_COUNT;++index){
+            if (_sortedConfigs[index].delayTime < THRESHOLD_DELAY)
+                ++count;
+        }
+        if (count == 0)
+            return best.index;
+        int pick = _random.nextInt(count);
+        for (int index = 1;index < RECORD_CONFIG_COUNT;++index){
+            if (_sortedConfigs[index].delayTime < THRESHOLD_DELAY && pick-- == 0){
+                if (DEBUG)
+                    Log.d(TAG, "explore audio: " + _sortedConfigs[index].tag);
+                return _sortedConfigs[index].index;
+            }
+        }
+        return best.index;
+    }
+
+    /**
+     * 一个录音源上传后的检测结果，更新成功率和分贝后重新排序。
+     * 本地分贝不够没有上传的不算，那时多半只是周围没有信号，跟录音源无关
+     */
+    private void _onDecodeResult(int index, int result, float dB){
+        if (index < 0 || index >= RECORD_CONFIG_COUNT || !_hasTestFinished())
+            return;
+        RecordConfig config = _recordConfigs[index];
+        config.tries = config.tries * DECODE_DECAY + 1;
+        config.decoded = config.decoded * DECODE_DECAY + ((result == DECODE_OK) ? 1 : 0);
+        if (dB > THRESHOLD_DB){
+            config.power += (dB - config.power) * POWER_ALPHA;
+        }
+        Arrays.sort(_sortedConfigs, _recordConfigComparator);
+        if (DEBUG)
+            Log.d(TAG, "decode result: " + config.tag + " " + result + " rank: " + config.getRank() + " prefer: " + _sortedConfigs[0].tag);
+        long now = System.currentTimeMillis();
+        if (now - _lastDecodeSave >= DECODE_SAVE_INTERVAL){
+            _lastDecodeSave = now;
+            _saveCalibration();
+        }
+    }
+
+    private void _rememberBinSource(byte[] bin, int index){
+        synchronized (_recentBins){
+            _recentBins[_recentBinCursor] = bin;
+            _recentBinSources[_recentBinCursor] = index;
+            _recentBinCursor = (_recentBinCursor + 1) % RECENT_BINS;
+        }
+    }
+
+    /**
+     * bin是哪个录音源录的，只能取一次，找不到时返回-1
+     */
+    private int _takeBinSource(byte[] bin){
+        if (bin == null)
+            return -1;
+        synchronized (_recentBins){
+            for (int index = 0;index < RECENT_BINS;++index){
+                if (_recentBins[index] == bin){
+                    _recentBins[index] = null;
+                    return _recentBinSources[index];
+                }
+            }
+        }
+        return -1;
+    }
+
+    private String _calibrationKey(){
+        return Build.FINGERPRINT + "|" + SDK_VERSION + "|" + RECORD_CONFIG_COUNT;
+    }
+
+    /**
+     * 读取保存的测试结果，key（系统版本、SDK版本）不同时不用，只用上次最好的录音源决定测试顺序。已经开始测试时不读
+     */
+    private void _loadCalibration(Context context){
+        try {
+            _preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            if (_recordTestIndex != 0)
+                return;
+            int prefer = (int) _preferences.getLong(PREFER_KEY, -1);
+            if (prefer > 0 && prefer < RECORD_CONFIG_COUNT){
+                //上次最好的录音源先测
+                for (int index = prefer;index > 0;--index){
+                    _testOrder[index] = _testOrder[index - 1];
+                }
+                _testOrder[0] = prefer;
+            }
+
+            String saved = _preferences.getString(CALIBRATION_KEY, null);
+            if (saved == null)
+                return;
+            JSONObject json = new JSONObject(saved);
+            if (!_calibrationKey().equals(json.optString("key")))
+                return;
+            JSONArray configs = json.getJSONArray("configs");
+            int tested = json.getInt("tested");
+            int order[] = new int[RECORD_CONFIG_COUNT];
+            int testOrder[] = new int[RECORD_CONFIG_COUNT];
+            if (configs.length() != RECORD_CONFIG_COUNT || tested <= 0 || tested > RECORD_CONFIG_COUNT
+                    || !_readOrder(json.getJSONArray("order"), order) || !_readOrder(json.getJSONArray("testOrder"), testOrder))
+                return;
+
+            for (int index = 0;index < RECORD_CONFIG_COUNT;++index){
+                JSONObject item = configs.getJSONObject(index);
+                RecordConfig config = _recordConfigs[index];
+                config.power = (float) item.getDouble("power");
+                config.delayTime = item.getInt("delayTime");
+                config.hasFailed = item.getInt("hasFailed");
+                config.duration = item.getInt("duration");
+                config.tries = (float) item.optDouble("tries", 0);
+                config.decoded = (float) item.optDouble("decoded", 0);
+                _sortedConfigs[index] = _recordConfigs[order[index]];
+                _testOrder[index] = testOrder[index];
+            }
+            _recordTestIndex = tested;
+            _testGoodEnough = tested < RECORD_CONFIG_COUNT;
+            _calibrationCached = true;
+            if (DEBUG)
+                Log.d(TAG, "load calibration, prefer: " + _sortedConfigs[0].tag + " tested: " + tested);
+        }catch (Exception e){
+            if (DEBUG)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * 读取录音源的排列，不是0到RECORD_CONFIG_COUNT - 1的排列时返回false
+     */
+    private boolean _readOrder(JSONArray json, int order[]) throws Exception{
+        if (json.length() != RECORD_CONFIG_COUNT)
+            return false;
+        boolean used[] = new boolean[RECORD_CONFIG_COUNT];
+        for (int index = 0;index < RECORD_CONFIG_COUNT;++index){
+            int value = json.getInt(index);
+            if (value < 0 || value >= RECORD_CONFIG_COUNT || used[value])
+                return false;
+            used[value] = true;
+            order[index] = value;
+        }
+        return true;
+    }
+
+    private void _saveCalibration(){
+        if (_preferences == null)
+            return;
+        try {
+            JSONArray configs = new JSONArray();
+            JSONArray order = new JSONArray();
+            JSONArray testOrder = new JSONArray();
+            for (int index = 0;index < RECORD_CONFIG_COUNT;++index){
+                RecordConfig config = _recordConfigs[index];
+                JSONObject item = new JSONObject();
+                item.put("power", config.power);
+                item.put("delayTime", config.delayTime);
+                item.put("hasFailed", config.hasFailed);
+                item.put("duration", config.duration);
+                item.put("tries", config.tries);
+                item.put("decoded", config.decoded);
+                configs.put(item);
+                order.put(_sortedConfigs[index].index);
+                testOrder.put(_testOrder[index]);
+            }
+            JSONObject json = new JSONObject();
+            json.put("key", _calibrationKey());
+            json.put("configs", configs);
+            json.put("order", order);
+            json.put("testOrder", testOrder);
+            json.put("tested", _recordTestIndex);
+            //上次最好的录音源不随系统版本失效，只用来决定测试顺序
+            _preferences.edit().putString(CALIBRATION_KEY, json.toString()).putLong(PREFER_KEY, _sortedConfigs[0].index).apply();
+        }catch (Exception e){
+            if (DEBUG)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * 用缓存的测试结果时，第一次真正录音的结果用来验证缓存：正常就继续用，
+     * 失败（打不开、超时、完全没有声音）就删掉缓存，下次检测重新测试，失败的录音源放到最后测
+     */
+    private void _verifyCalibration(boolean ok){
+        if (!_calibrationCached)
+            return;
+        _calibrationCached = false;
+        if (ok)
+            return;
+        if (DEBUG)
+            Log.d(TAG, "cached calibration failed: " + _sortedConfigs[0].tag);
+        for (int index = 0;index < RECORD_CONFIG_COUNT;++index){
+            _testOrder[index] = _sortedConfigs[(index + 1) % RECORD_CONFIG_COUNT].index;
+        }
+        for (int index = 0;index < RECORD_CONFIG_COUNT;++index){
+            _recordConfigs[index].power = THRESHOLD_DB;
+            _recordConfigs[index].delayTime = THRESHOLD_DELAY;
+            _recordConfigs[index].hasFailed = 0;
+            _recordConfigs[index].tries = 0;
+            _recordConfigs[index].decoded = 0;
+        }
+        _recordTestIndex = 0;
+        _testGoodEnough = false;
+        if (_preferences != null){
+            _preferences.edit().remove(CALIBRATION_KEY).apply();
+        }
+    }
 
     public byte[] getDEBUGPCM(){
-        if (_lastPCMData == null){
+        long pcmStart = _lastPCMStart;
+        int pcmDataSize = _lastPCMFrames;
+        if (pcmStart < 0){
             return null;
         }
-        int pcmDataSize = _lastPCMData.length / 2;
         int wavSize = pcmDataSize * 2 + 44;
         long totalAudioLen = pcmDataSize * 2;
         long totalDataLen = totalAudioLen + 36;
@@ -1030,7 +2074,10 @@ public class BuyfullRecorder {
         long byteRate = 16 * longSampleRate * 1 / 8;
 
         byte[] header = new byte[wavSize];
-        System.arraycopy(header, 44, _lastPCMData, 0, _lastPCMData.length);
+        //只保留在环形缓冲区里，已经被覆盖时返回null
+        if (!_ring.read(pcmStart, pcmDataSize, header, 44)){
+            return null;
+        }
         header[0] = 'R'; // RIFF
         header[1] = 'I';
         header[2] = 'F';
@@ -1087,118 +2134,6 @@ public class BuyfullRecorder {
         return header;
     }
     //////////////////////////////////////////////////////////////////
-    private static int fft(float[] fr, float[] fi, int m, int inv){
-        int mr,nn,i,j,l,k,istep,n,scale,shift;
-        float qr,qi,tr,ti,wr,wi;
-
-        n = 1<<m;
-
-        if(n > N_WAVE)
-            return -1;
-
-        mr = 0;
-        nn = n - 1;
-        scale = 0;
-
-        for(m=1; m<=nn; ++m) {
-            l = n;
-            do {
-                l >>= 1;
-            } while(mr+l > nn);
-            mr = (mr & (l-1)) + l;
-
-            if(mr <= m) continue;
-            tr = fr[m];
-            fr[m] = fr[mr];
-            fr[mr] = tr;
-            ti = fi[m];
-            fi[m] = fi[mr];
-            fi[mr] = ti;
-        }
-
-        l = 1;
-        k = LOG2_N_WAVE-1;
-        while(l < n) {
-            if(inv > 0) {
-                shift = 0;
-            } else {
-                shift = 1;
-            }
-            istep = l << 1;
-            float h = 0.5f;
-            for(m=0; m<l; ++m) {
-                j = m << k;
-                wr =  fsin[j+N_WAVE/4];
-                wi = -fsin[j];
-                if(inv > 0)
-                    wi = -wi;
-                if(shift > 0) {
-                    wr *= h;
-                    wi *= h;
-                }
-                for(i=m; i<n; i+=istep) {
-                    j = i + l;
-                    tr = wr*fr[j]-wi*fi[j];
-                    ti = wr*fi[j]+wi*fr[j];
-                    qr = fr[i];
-                    qi = fi[i];
-                    if(shift > 0) {
-                        qr *= h;
-                        qi *= h;
-                    }
-                    fr[j] = qr - tr;
-                    fi[j] = qi - ti;
-                    fr[i] = qr + tr;
-                    fi[i] = qi + ti;
-                }
-            }
-            --k;
-            l = istep;
-        }
-
-        return scale;
-    }
-
-    private static void window_hanning(float[] fr, int n) {
-        int j = N_WAVE/n;
-        for(int i=0, k=N_WAVE/4; i<n; ++i,k+=j)
-            fr[i] *= 0.5f-0.5f*fsin[k%N_WAVE];
-    }
-
-    private static int compress(float []input, ByteBuffer output, int numberOfSamples) {
-        float max = -99999999f, min = 99999999f;
-
-        for (int index = 0; index < numberOfSamples; ++index) {
-            float temp = input[index];
-            if (temp > max)
-                max = temp;
-            if (temp < min)
-                min = temp;
-        }
-        float average = 0;
-        float longer = Math.abs(max)>Math.abs(min)?Math.abs(max):Math.abs(min);
-        float factor = longer / 127;
-
-        try {
-            output.putFloat(average * 2);
-            output.putFloat(factor * 2);
-
-            for (int index = 0; index < numberOfSamples; ++index) {
-                float temp = input[index] - average;
-                int result = (int) (temp / factor);
-                if (result > 127)
-                    result = 127;
-                else if (result < -127)
-                    result = -127;
-                output.put((byte)(result));
-            }
-            return numberOfSamples + 8;
-        }catch (Exception e){
-            e.printStackTrace();
-            return 0;
-        }
-    }
-
     private String md5Decode32(byte[] content) {
         byte[] hash;
         try {
@@ -23,8 +23,16 @@ import java.net.HttpURLConnection;
 import java.net.NetworkInterface;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static com.buyfull.sdk.BuyfullRecorder.DEFAULT_LIMIT_DB;
 import static com.buyfull.sdk.BuyfullRecorder.DEFAULT_RECORD_TIMEOUT;
@@ -43,6 +51,13 @@ public class BuyfullSDK {
      * @return JSON结果
      */
     public String detectRequest(String fetchURL, String appkey, String deviceInfo, String customData) throws Exception{
+        return detectRequest(fetchURL, appkey, deviceInfo, customData, null);
+    }
+
+    /**
+     * 同上，handle不为空时超时不超过检测的截止时间，取消检测时马上中断
+     */
+    public String detectRequest(String fetchURL, String appkey, String deviceInfo, String customData, DetectHandle handle) throws Exception{
         if (fetchURL == null || appkey == null || deviceInfo == null){
             throw new Exception("Please check params");
         }
@@ -56,9 +71,13 @@ public class BuyfullSDK {
             URL url = new URL(_detectURL + cmd);
 
             connection = (HttpURLConnection) url.openConnection();
+            if (handle != null && !handle._attach(connection)){
+                throw new Exception("cancelled");
+            }
+            int timeout = (handle != null) ? handle._timeout(1000) : 1000;
             connection.setRequestMethod("GET");
-            connection.setConnectTimeout(1000);
-            connection.setReadTimeout(1000);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
             connection.setDoOutput(false);
             connection.setDoInput(true);
             connection.setUseCaches(false);
@@ -83,6 +102,9 @@ public class BuyfullSDK {
             error = e;
         } finally {
             if(connection != null) {
+                if (handle != null){
+                    handle._detach(connection);
+                }
                 connection.disconnect(); //将Http连接关闭掉
             }
         }
@@ -91,6 +113,12 @@ public class BuyfullSDK {
         return null;
     }
 
+    /**
+     * 在SDK的线程（BuyfullLoop）直接回调，不再post到调用detect的线程，UI线程忙时也不用排队。
+     * 回调里不要做耗时的事，要更新UI请自己切换线程
+     */
+    public static final Executor DIRECT_EXECUTOR = BuyfullRecorder.DIRECT_EXECUTOR;
+
     public interface IDetectCallback {
         /**
          * 检测完成后回调
@@ -102,22 +130,149 @@ public class BuyfullSDK {
         void onDetect(final JSONObject options, final float dB, final String result, final Exception error);
     }
 
+    public interface IReadyCallback {
+        /**
+         * 录音线程已经启动，DSP的表已经算好
+         */
+        void onReady();
+    }
+
+    /**
+     * detect和startContinuous返回，可以单独取消这一个检测，不影响同时进行的其它检测
+     */
+    public class DetectHandle{
+        private final DetectContext                 _cxt;
+        private final long                          _deadline;//System.currentTimeMillis()的毫秒，0表示没有
+        private volatile boolean                    _cancelled = false;
+        private final ArrayList<HttpURLConnection>  _connections = new ArrayList<HttpURLConnection>();//网络线程中正在进行的请求
+
+        private DetectHandle(DetectContext cxt, long deadline){
+            _cxt = cxt;
+            _deadline = deadline;
+        }
+
+        /**
+         * 取消检测：马上中断上传中的请求，不再等录音，还没有算的窗口不再算，回调一次error为cancelled的结果。
+         * 已经结束时不做任何事，可以在任何线程调用
+         */
+        public void cancel(){
+            synchronized (this){
+                if (_cancelled)
+                    return;
+                _cancelled = true;
+            }
+            _abort();
+            _notifyThread.handler().obtainMessage(CANCEL, _cxt).sendToTarget();
+        }
+
+        public boolean isCancelled(){
+            return _cancelled;
+        }
+
+        /**
+         * 截止时间（System.currentTimeMillis()的毫秒），是开始检测的时间加上options中的"timeout"，
+         * 过了就不再录音和上传，进行中的请求最多等到这个时间。连续检测没有截止时间，返回0
+         * @return
+         */
+        public long getDeadline(){
+            return _deadline;
+        }
+
+        /**
+         * 已经取消或者过了截止时间
+         */
+        private boolean _isOver(){
+            return _cancelled || (_deadline > 0 && System.currentTimeMillis() >= _deadline);
+        }
+
+        /**
+         * 网络请求的超时，不超过max，也不超过截止时间
+         */
+        private int _timeout(int max){
+            if (_deadline <= 0)
+                return max;
+            long remain = _deadline - System.currentTimeMillis();
+            //0表示不超时，至少1毫秒
+            return (int) Math.max(1, Math.min(max, remain));
+        }
+
+        /**
+         * 网络线程开始一个请求前登记，已经取消、过了截止时间或者stop()了时返回false
+         */
+        private synchronized boolean _attach(HttpURLConnection connection){
+            if (!_detectStarted || _isOver())
+                return false;
+            _connections.add(connection);
+            return true;
+        }
+
+        private synchronized void _detach(HttpURLConnection connection){
+            _connections.remove(connection);
+        }
+
+        /**
+         * 断开进行中的请求，阻塞在connect或者read里的网络线程会马上抛出异常
+         */
+        private void _abort(){
+            Object[] connections;
+            synchronized (this){
+                connections = _connections.toArray();
+                _connections.clear();
+            }
+            for (Object connection : connections){
+                try {
+                    ((HttpURLConnection) connection).disconnect();
+                }catch (Exception e){
+
+                }
+            }
+            //在等别的检测请求TOKEN的网络线程不用再等
+            synchronized (_tokenLock){
+                _tokenLock.notifyAll();
+            }
+        }
+    }
+
+    public interface IContinuousCallback extends IDetectCallback {
+        /**
+         * 连续检测时每个窗口算好分贝后马上回调，不等上传结果
+         * @param options   此次检测的参数
+         * @param dB        这个窗口的分贝数
+         */
+        void onLevel(final JSONObject options, final float dB);
+    }
+
 
     private class DetectContext{
-        public Handler              callbackHandler;
+        public Executor             callbackExecutor;
         public IDetectCallback      callback;
         public String               customData;
         public long                 timeStamp;
         public long                 timeOut = DEFAULT_RECORD_TIMEOUT;
         public boolean              alwaysAutoRetry = false;//如果解析失败是否自动重试
         public boolean              firstTimeBoost = false;//第一次解析是否加速
+        public boolean              continuous = false;//是否是startContinuous的连续检测
+        public boolean              streamEnded = false;//连续检测已经结束，下一次回调是最后一次
         public JSONObject           options;
-
-        public DetectContext(JSONObject _options, IDetectCallback cb){
+        public final DetectHandle   handle;
+        //以下只在BuyfullLoop中使用
+        public int                  pending = 0;//已经交给网络线程还没有返回的窗口数
+        public boolean              capturing = false;//单次检测时有一个录音请求还没有返回
+        public boolean              finished = false;//单次检测或者取消了的连续检测已经回调了最后结果
+        public JSONObject           recorderOptions;//最后一次交给录音的参数，取消时用来找到录音的请求
+        public boolean              keptRecording = false;//为了重试没有按stopAfterReturn停止录音，结束时再停止
+        public boolean              active = false;//已经开始，还没有最后回调
+        public boolean              endPending = false;//连续检测已经结束，等上传中的窗口返回后再回调最后一次
+        public float                lastDB = DEFAULT_LIMIT_DB;//还没有回调的最后结果
+        public String               lastResult;
+        public Exception            lastError;
+
+        public DetectContext(JSONObject _options, IDetectCallback cb, boolean _continuous, Executor executor){
             callback = cb;
             options = _options;
+            continuous = _continuous;
             timeStamp = System.currentTimeMillis();
-            callbackHandler = new Handler();
+            callbackExecutor = (executor != null) ? executor : HandlerExecutor.current();
             try {
                 //允许的option的值
                 if (options != null){
@@ -129,6 +284,7 @@ public class BuyfullSDK {
             }catch (Exception e){
                 e.printStackTrace();
             }
+            handle = new DetectHandle(this, continuous ? 0 : timeStamp + timeOut);
         }
         public JSONObject getRecorderOptions(){
             JSONObject recorderResult = new JSONObject();
@@ -150,6 +306,27 @@ public class BuyfullSDK {
                 if (!options.isNull("validTimePeriod"))
                     recorderResult.put("validTimePeriod",options.get("validTimePeriod"));
 
+                if (!options.isNull("zoomBin"))
+                    recorderResult.put("zoomBin",options.get("zoomBin"));
+
+                if (!options.isNull("fixedPoint"))
+                    recorderResult.put("fixedPoint",options.get("fixedPoint"));
+
+                if (!options.isNull("parallelFFT"))
+                    recorderResult.put("parallelFFT",options.get("parallelFFT"));
+
+                if (!options.isNull("engine"))
+                    recorderResult.put("engine",options.get("engine"));
+
+                if (!options.isNull("crossCheck"))
+                    recorderResult.put("crossCheck",options.get("crossCheck"));
+
+                if (!options.isNull("preRoll"))
+                    recorderResult.put("preRoll",options.get("preRoll"));
+
+                if (!options.isNull("hop"))
+                    recorderResult.put("hop",options.get("hop"));
+
             }catch (Exception e){
 
             }
@@ -167,16 +344,17 @@ public class BuyfullSDK {
     public synchronized static void destory(){
         if (instance != null){
             instance.stop();
+            instance._netExecutor.shutdown();
             instance = null;
         }
         BuyfullRecorder.destory();
     }
     /**
-     * 请在完成了READ_PHONE_STATE权限申请后执行
+     * 请在完成了READ_PHONE_STATE权限申请后执行，同时读取上次保存的录音源测试结果
      * @param ctx
      */
     public void setContext(Context ctx){
-        Message msg = _notifyThread.mHandler.obtainMessage(INIT_MSG, ctx);
+        Message msg = _notifyThread.handler().obtainMessage(INIT_MSG, ctx);
         msg.sendToTarget();
     }
 
@@ -187,7 +365,7 @@ public class BuyfullSDK {
      * @param detectURL
      */
     public void setSDKInfo(String appKey, String tokenURL, String detectURL){
-        Message msg = _notifyThread.mHandler.obtainMessage(SET_SDKINFO, new String[]{appKey, tokenURL, detectURL});
+        Message msg = _notifyThread.handler().obtainMessage(SET_SDKINFO, new String[]{appKey, tokenURL, detectURL});
         msg.sendToTarget();
     }
 
@@ -200,197 +378,658 @@ public class BuyfullSDK {
     }
 
     /**
-     * 当前是否正在录音检测，不能重复调用detect
+     * 当前是否有检测在进行。可以同时有几个检测，共用一个录音
      * @return
      */
     public synchronized boolean isDetecting(){
         return _isDetecting;
     }
 
+    /**
+     * 当前录音的带内信号分贝数，录音时实时更新，没有在录音时返回-150
+     * @return
+     */
+    public float getCurrentDB(){
+        return BuyfullRecorder.getInstance().getCurrentDB();
+    }
+
+    /**
+     * 各个计算引擎与reference引擎的抽查比对统计，需要在检测参数中设置crossCheck
+     * @return
+     */
+    public JSONObject getEngineStats(){
+        return BuyfullRecorder.getInstance().getEngineStats();
+    }
+
+    /**
+     * 准备好后在调用的线程回调，已经准备好时也会回调。getInstance()不等准备，不等这个回调也可以直接detect，会排在准备之后
+     * @param callback
+     */
+    public void whenReady(final IReadyCallback callback){
+        whenReady(callback, null);
+    }
+
+    /**
+     * 同上，用executor回调，为空时在调用线程回调。DIRECT_EXECUTOR在录音的通知线程直接回调
+     * @param callback
+     * @param executor
+     */
+    public void whenReady(final IReadyCallback callback, Executor executor){
+        if (callback == null)   return;
+        final Executor callbackExecutor = (executor != null) ? executor : HandlerExecutor.current();
+        Message msg = _notifyThread.handler().obtainMessage(WHEN_READY, new BuyfullRecorder.IReadyCallback() {
+            @Override
+            public void onReady() {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            callback.onReady();
+                        }catch (Exception e){
+                            e.printStackTrace();
+                        }
+                    }
+                });
+            }
+        });
+        msg.sendToTarget();
+    }
+
     public void debugUpload(String record_id){
-        Message msg = _notifyThread.mHandler.obtainMessage(DEBUG_UPLOAD, record_id);
+        Message msg = _notifyThread.handler().obtainMessage(DEBUG_UPLOAD, record_id);
         msg.sendToTarget();
     }
     /**
-     * 启动检测
+     * 启动检测。正在检测时也可以调用，各自的customData、timeout、limitdB等参数分别生效，
+     * 共用同一个录音，取到同一个窗口时BIN只算一次。
+     * 返回的句柄可以单独取消这个检测，timeout（默认6000毫秒）是整个检测的截止时间，包括重试和上传。在调用线程回调
+     * @return callback为空时返回null
      */
-    public void detect(JSONObject options, final IDetectCallback callback){
-        if (callback == null)   return;
-        if (isDetecting()){
-            callback.onDetect(options, DEFAULT_LIMIT_DB,null, new Exception("don't call detect while detecting"));
-            return;
-        }
+    public DetectHandle detect(JSONObject options, final IDetectCallback callback){
+        return detect(options, callback, null);
+    }
+
+    /**
+     * 同上，用executor回调，为空时在调用线程回调。DIRECT_EXECUTOR在SDK的线程直接回调
+     * @return callback为空时返回null
+     */
+    public DetectHandle detect(JSONObject options, final IDetectCallback callback, Executor executor){
+        if (callback == null)   return null;
+        _detectStarted = true;
+        DetectContext cxt = new DetectContext(options,callback,false,executor);
+        Message msg = _notifyThread.handler().obtainMessage(DETECT, cxt);
+        msg.sendToTarget();
+        return cxt.handle;
+    }
+    /**
+     * 连续检测，适合全天扫码的设备：保持录音，每隔hop毫秒（options中的"hop"，默认550）检测一个以最新录音结尾的1.1秒窗口，窗口之间可以重叠。
+     * 上一个窗口上传时下一个窗口已经在计算。每个窗口先回调onLevel，上传返回后回调onDetect，没有结果时error为no_result。
+     * 上传跟不上时（已经有MAX_PENDING_UPLOADS个窗口在上传）跳过中间的窗口，只回调onLevel。
+     * 直到调用stop()、取消返回的句柄或者录音失败才结束，最后一次onDetect的error为record_stop、cancelled或record_fail。可以和detect同时进行。
+     * 在调用线程回调
+     * @return callback为空时返回null
+     */
+    public DetectHandle startContinuous(JSONObject options, final IContinuousCallback callback){
+        return startContinuous(options, callback, null);
+    }
+
+    /**
+     * 同上，用executor回调，为空时在调用线程回调。DIRECT_EXECUTOR在SDK的线程直接回调
+     * @return callback为空时返回null
+     */
+    public DetectHandle startContinuous(JSONObject options, final IContinuousCallback callback, Executor executor){
+        if (callback == null)   return null;
         _detectStarted = true;
-        Message msg = _notifyThread.mHandler.obtainMessage(DETECT, new DetectContext(options,callback));
+        DetectContext cxt = new DetectContext(options,callback,true,executor);
+        Message msg = _notifyThread.handler().obtainMessage(DETECT, cxt);
         msg.sendToTarget();
+        return cxt.handle;
+    }
+    /**
+     * 预录：提前开始录音，之后的检测直接用已经录好的声音，可以在进入扫码页面时调用。
+     * options中的"preRoll"为保持录音的秒数，默认5秒，调用stop()会马上停止
+     */
+    public void startPreRoll(JSONObject options){
+        BuyfullRecorder.getInstance().startPreRoll(options);
     }
     /**
-     * 停止检测，停止后会回调，请注意
+     * 停止所有检测，停止后会回调，请注意。上传中的请求马上中断，不等超时
      */
     public void stop(){
         _detectStarted = false;
         if (DEBUG) {
             Log.d(TAG, "detect stop");
         }
+        synchronized (_liveHandles){
+            for (DetectHandle handle : _liveHandles){
+                handle._abort();
+            }
+        }
         BuyfullRecorder.getInstance().stop();
     }
 
-    private void _detect(DetectContext cxt, boolean isRetry){
-        //以免重复调用
-        if (_token == null && _isInitingToken){
-            _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "initing buyfull sdk, please wait", false);
-            return;
+    /**
+     * 开始录音。TOKEN不用等：没有或者需要刷新时在网络线程提前请求，和录音同时进行，上传前再确认。
+     * speculative为true时是上一个窗口还在上传时提前取下一个窗口，结尾至少比现在晚RETRY_HOP毫秒
+     */
+    private void _detect(DetectContext cxt, boolean isRetry, boolean speculative){
+        if (isRetry){
+            if (!_detectStarted || cxt.finished){
+                //重试发出后已经stop()了
+                cxt.capturing = false;
+                if (cxt.lastError == null){
+                    cxt.lastError = new Exception("no_result");
+                }
+                if (!cxt.finished){
+                    _finishOrDefer(cxt, cxt.lastDB, cxt.lastResult, cxt.lastError);
+                }
+                return;
+            }
+        }else{
+            if (!_hasMicphonePermission){
+                _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "no record permission", false);
+                return;
+            }
+
+            if (_deviceInfo == null){
+                _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "please init context first", false);
+                return;
+            }
+
+            if (cxt.handle.isCancelled()){
+                //开始前就取消了，不用打开录音
+                _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "cancelled", false);
+                return;
+            }
         }
-        if (_token != null && _isDetecting && !isRetry){
-            _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "buyfull sdk is detecting, please wait", false);
-            return;
+
+        if (((_token == null || _needRefreshToken) && !_isInitingToken)){
+            final DetectHandle handle = cxt.handle;
+            _submitNet(new Runnable() {
+                @Override
+                public void run() {
+                    _ensureToken(handle);
+                }
+            });
         }
 
-        if (!_hasMicphonePermission){
-            _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "no record permission", false);
-            return;
+        if (!cxt.active){
+            cxt.active = true;
+            ++_activeDetects;
+            _isDetecting = true;
+            synchronized (_liveHandles){
+                _liveHandles.add(cxt.handle);
+            }
+            if (cxt.handle.getDeadline() > 0){
+                Handler handler = _notifyThread.handler();
+                handler.sendMessageDelayed(handler.obtainMessage(DEADLINE, cxt),
+                        Math.max(0, cxt.handle.getDeadline() - System.currentTimeMillis()));
+            }
         }
+        cxt.capturing = true;
+        JSONObject recorderOptions = cxt.getRecorderOptions();
+        if (!cxt.continuous && recorderOptions.optBoolean("stopAfterReturn", false) && _canRetry(cxt)){
+            //还可能重试，先不停止录音，检测结束时再停止
+            try {
+                recorderOptions.put("stopAfterReturn", false);
+                cxt.keptRecording = true;
+            }catch (Exception e){
 
-        if (_deviceInfo == null){
-            _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "please init context first", false);
-            return;
+            }
         }
+        if (cxt.continuous){
+            try {
+                //每个窗口上传完才算回调完成，见onRecord
+                recorderOptions.put("ackWindows", true);
+            }catch (Exception e){
 
-        if ((_token == null && !_isInitingToken) || _needRefreshToken){
-            _isInitingToken = true;
+            }
+        }
+        if (speculative){
             try {
-                String tokenResult = requestToken(_tokenURL,_appKey, _needRefreshToken);
-                JSONObject tokenJSON = (JSONObject) new JSONTokener(tokenResult).nextValue();
-                String token = tokenJSON.getString("token");
-                if (token != null && !token.isEmpty()){
-                    _token = token;
-                    _needRefreshToken = false;
-                    if (DEBUG){
-                        Log.d(TAG,"token is:" + token);
+                recorderOptions.put("minDelay", RETRY_HOP);
+            }catch (Exception e){
+
+            }
+        }
+        cxt.recorderOptions = recorderOptions;
+        //录音的通知线程直接回调_notifyThread，不用再post一次
+        if (cxt.continuous){
+            BuyfullRecorder.getInstance().startContinuous(recorderOptions, _notifyThread, BuyfullRecorder.DIRECT_EXECUTOR);
+        }else{
+            BuyfullRecorder.getInstance().record(recorderOptions, _notifyThread, BuyfullRecorder.DIRECT_EXECUTOR);
+        }
+    }
+
+    /**
+     * 在网络线程中请求或刷新TOKEN，同时只发一个请求，其它线程等它的结果。
+     * 请求挂在发起它的检测上，受它的截止时间限制，取消时马上中断；等待的线程也最多等到自己的截止时间，
+     * 发起的检测被中断时，还在等的检测自己重新请求
+     * @param handle    需要TOKEN的检测
+     * @return 失败时返回错误
+     */
+    private Exception _ensureToken(DetectHandle handle){
+        while (true){
+            TokenFetch fetch;
+            boolean owner = false;
+            synchronized (_tokenLock){
+                if (_token != null && !_token.isEmpty() && !_needRefreshToken)
+                    return null;
+                fetch = _tokenFetch;
+                if (fetch == null){
+                    fetch = new TokenFetch();
+                    _tokenFetch = fetch;
+                    _isInitingToken = true;
+                    owner = true;
+                }
+            }
+            if (owner){
+                Exception error = _requestToken(handle);
+                synchronized (_tokenLock){
+                    fetch.done = true;
+                    fetch.error = error;
+                    fetch.aborted = (error != null && (handle._isOver() || !_detectStarted));
+                    _tokenFetch = null;
+                    _isInitingToken = false;
+                    _tokenLock.notifyAll();
+                }
+                return error;
+            }
+            synchronized (_tokenLock){
+                while (!fetch.done){
+                    if (handle._isOver() || !_detectStarted)
+                        return new Exception("cancelled");
+                    try {
+                        //取消、截止和stop()时_abort()会notifyAll
+                        _tokenLock.wait(handle._timeout(Integer.MAX_VALUE));
+                    }catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        return e;
                     }
+                }
+                if (!fetch.aborted)
+                    return fetch.error;
+            }
+        }
+    }
 
-                }else{
-                    _safeCallBackFail(cxt, DEFAULT_LIMIT_DB, "init token fail: " + tokenResult, false);
+    private Exception _requestToken(DetectHandle handle){
+        try {
+            String tokenResult = requestToken(_tokenURL,_appKey, _needRefreshToken, handle);
+            JSONObject tokenJSON = (JSONObject) new JSONTokener(tokenResult).nextValue();
+            String token = tokenJSON.getString("token");
+            if (token != null && !token.isEmpty()){
+                _token = token;
+                _needRefreshToken = false;
+                if (DEBUG){
+                    Log.d(TAG,"token is:" + token);
                 }
-            } catch (Exception e) {
-                _safeCallBack(cxt,DEFAULT_LIMIT_DB,null,e, false);
-            } finally {
-                _isInitingToken = false;
+                return null;
             }
+            return new Exception("init token fail: " + tokenResult);
+        } catch (Exception e) {
+            return e;
         }
+    }
 
-        if (_token != null && !_token.isEmpty() && _hasMicphonePermission && (!_isDetecting || isRetry)) {
-            _isDetecting = true;
-            BuyfullRecorder.getInstance().record(cxt.getRecorderOptions(), _notifyThread);
+    /**
+     * 单次检测没有结果时是否还能自动重试
+     */
+    private boolean _canRetry(DetectContext cxt){
+        return _detectStarted && (cxt.alwaysAutoRetry || (cxt.firstTimeBoost && !_hasSuccessGotResult))
+                && !cxt.handle._isOver();
+    }
+
+    /**
+     * 已经stop()、取消或者过了截止时间，网络线程不用再发请求
+     */
+    private boolean _isAborted(DetectContext cxt){
+        return !_detectStarted || cxt.handle._isOver();
+    }
+
+    /**
+     * 单次检测到了截止时间，在BuyfullLoop中调用。录音的请求交给录音线程取消（录音本身照常，由stopAfterReturn决定），
+     * 上传中的请求中断，用最后一个窗口的结果（通常是no_result）回调
+     */
+    private void _onDeadline(DetectContext cxt){
+        if (!cxt.active || cxt.finished)
+            return;
+        if (cxt.capturing && cxt.recorderOptions != null){
+            BuyfullRecorder.getInstance().cancel(cxt.recorderOptions);
         }
+        cxt.handle._abort();
+        cxt.capturing = false;
+        Exception error = cxt.lastError;
+        if (error == null){
+            error = new Exception("no_result");
+        }
+        _finish(cxt, cxt.lastDB, cxt.lastResult, error);
     }
 
+    /**
+     * 取消一个检测，在BuyfullLoop中调用。马上回调cancelled，录音中的请求交给录音线程取消，上传中的窗口返回后丢掉
+     */
+    private void _cancel(DetectContext cxt){
+        if (!cxt.active || cxt.finished)
+            return;
+        if (cxt.recorderOptions != null){
+            BuyfullRecorder.getInstance().cancel(cxt.recorderOptions);
+        }
+        cxt.capturing = false;
+        cxt.streamEnded = true;
+        _finish(cxt, DEFAULT_LIMIT_DB, null, new Exception("cancelled"));
+    }
+
+    /**
+     * 交给网络线程，队列满时返回false
+     */
+    private boolean _submitNet(Runnable task){
+        try {
+            _netExecutor.execute(task);
+            return true;
+        }catch (RejectedExecutionException e){
+            if (DEBUG){
+                Log.d(TAG, "network busy");
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 录音返回，在BuyfullLoop中调用。算好的BIN交给网络线程上传，不在这里等网络。
+     * 单次检测可以自动重试时，上传的同时就开始取下一个窗口。
+     * 连续检测的窗口交给网络线程时，上传和查询都返回后（_onNetResult）才告诉录音可以取下一个窗口，
+     * 上传跟不上时录音不再算会被丢掉的BIN；没有上传的窗口马上告诉
+     */
     private void onRecord(DetectContext cxt, float dB, byte[] bin, BuyfullRecorder.RecordException error){
+        boolean uploading = _onRecord(cxt, dB, bin, error);
+        if (cxt.continuous && !uploading && (error == null || error.code == BuyfullRecorder.SIGNAL_DB_TOO_LOW
+                || error.code == BuyfullRecorder.RECORD_TIMEOUT)){
+            BuyfullRecorder.getInstance().windowDone(cxt.recorderOptions);
+        }
+    }
+
+    /**
+     * @return 窗口交给了网络线程
+     */
+    private boolean _onRecord(DetectContext cxt, float dB, byte[] bin, BuyfullRecorder.RecordException error){
+        if (cxt.continuous){
+            if (cxt.finished)
+                return false;
+            if (error == null || error.code == BuyfullRecorder.SIGNAL_DB_TOO_LOW){
+                _safeLevelCallBack(cxt, dB);
+            }else if (error.code != BuyfullRecorder.RECORD_TIMEOUT){
+                //录音停止或失败，连续检测到此结束，还有窗口在上传时等它们回调完
+                if (cxt.pending > 0){
+                    cxt.endPending = true;
+                    cxt.lastDB = dB;
+                    cxt.lastResult = null;
+                    cxt.lastError = new Exception(_recordErrorMessage(cxt, error));
+                    return false;
+                }
+                cxt.streamEnded = true;
+            }
+        }else{
+            cxt.capturing = false;
+            if (cxt.finished)
+                return false;
+        }
         //如果录音返回出错
         if (error != null){
             if (DEBUG) {
                 error.printStackTrace();
             }
-            if (error.code == BuyfullRecorder.NO_ERROR || error.code == BuyfullRecorder.RECORD_STOPED) {
-                _safeCallBackFail(cxt, dB, "record_stop", true);
-            }else if (error.code == BuyfullRecorder.SIGNAL_DB_TOO_LOW){
-                _safeCallBackFail(cxt, dB, "no_result", true);
-            }else{
-                _safeCallBackFail(cxt,dB,"record_fail", true);
-            }
-            return;
+            _finishOrDefer(cxt, dB, null, new Exception(_recordErrorMessage(cxt, error)));
+            return false;
         }
 
         //如果压缩录音返回出错
         if (bin == null){
-            _safeCallBackFail(cxt,dB,"record_fail", true);
-            return;
+            _finishOrDefer(cxt, dB, null, new Exception("record_fail"));
+            return false;
         }
         if (DEBUG) {
             Log.d(TAG, "pcm db is " + dB);
         }
         if (!_detectStarted){
-            _safeCallBackFail(cxt,dB,"no_result", true);
-            return;
+            _finishOrDefer(cxt, dB, null, new Exception("no_result"));
+            return false;
+        }
+        if (cxt.continuous && cxt.pending >= MAX_PENDING_UPLOADS){
+            if (DEBUG){
+                Log.d(TAG, "upload busy, skip window");
+            }
+            return false;
         }
         //发送录音检测请求
-        String record_id_result = null;
-        try {
-            record_id_result = recordRequest(bin, _token);
-        } catch (Exception e) {
-            _safeCallBack(cxt,dB,null, e,true);
+        final DetectContext fcxt = cxt;
+        final float fdB = dB;
+        final byte[] fbin = bin;
+        if (!_submitNet(new Runnable() {
+            @Override
+            public void run() {
+                _uploadStage(fcxt, fdB, fbin);
+            }
+        })){
+            _finishOrDefer(cxt, dB, null, new Exception("network busy"));
+            return false;
+        }
+        ++cxt.pending;
+        if (!cxt.continuous && !cxt.capturing && cxt.pending < MAX_PENDING_UPLOADS && _canRetry(cxt)){
+            //上传的同时取下一个窗口，没有结果时不用再等录音
+            cxt.capturing = true;
+            _notifyThread.handler().obtainMessage(RETRY, 1, 0, cxt).sendToTarget();
+        }
+        return true;
+    }
+
+    private String _recordErrorMessage(DetectContext cxt, BuyfullRecorder.RecordException error){
+        if (error.code == BuyfullRecorder.NO_ERROR || error.code == BuyfullRecorder.RECORD_STOPED) {
+            return "record_stop";
+        }else if (error.code == BuyfullRecorder.SIGNAL_DB_TOO_LOW){
+            return "no_result";
+        }else if (cxt.continuous && error.code == BuyfullRecorder.RECORD_TIMEOUT){
+            //录音会重新打开，连续检测继续
+            return "record_timeout";
         }
-        if (record_id_result == null || record_id_result == ""){
-            _safeCallBackFail(cxt,dB,"get record id fail", true);
+        return "record_fail";
+    }
+
+    /**
+     * 连续检测时直接回调这个窗口的结果。单次检测时还有窗口在上传或者在录音就先记下，等它们都返回后再回调
+     */
+    private void _finishOrDefer(DetectContext cxt, float dB, String result, Exception error){
+        if (cxt.continuous){
+            _safeCallBack(cxt, dB, result, error, true);
             return;
         }
-        if (!_detectStarted){
-            _safeCallBackFail(cxt,dB,"no_result", true);
+        cxt.lastDB = dB;
+        cxt.lastResult = result;
+        cxt.lastError = error;
+        if (cxt.pending > 0 || cxt.capturing)
             return;
+        _finish(cxt, dB, result, error);
+    }
+
+    /**
+     * 回调最后结果，还在取的窗口不再上传。连续检测只有取消时调用
+     */
+    private void _finish(DetectContext cxt, float dB, String result, Exception error){
+        cxt.finished = true;
+        if (cxt.keptRecording){
+            //没有其它检测在用录音时再停止
+            _stopWhenIdle = true;
         }
-        //处理录音检测结果
-        JSONObject record_id_json = null;
-        String record_id_url = null;
-        try{
-            record_id_json = (JSONObject) new JSONTokener(record_id_result).nextValue();
-            String msg = record_id_json.getString("msg");
-            if (!msg.equals("ok") && !msg.equals("no_result")){
-                Log.e(TAG,"server return error msg:" + record_id_result);
-            }
-            if (msg.equals("ok")){
-                //有检测结果
-                record_id_url = record_id_json.getString("query_url");
-                if (record_id_url == null || record_id_url.equals("")){
-                    _safeCallBackFail(cxt,dB,"server_error:" + record_id_result, true);
-                    return;
+        _safeCallBack(cxt, dB, result, error, true);
+    }
+
+    /**
+     * 网络线程：上传BIN解码，有结果时交给_queryStage查询，否则把结果交回BuyfullLoop
+     */
+    private void _uploadStage(DetectContext cxt, float dB, byte[] bin){
+        NetResult r = new NetResult(cxt, dB);
+        try {
+            if (_isAborted(cxt)){
+                r.noResult = true;
+                r.error = new Exception("no_result");
+                return;
+            }
+            Exception tokenError = _ensureToken(cxt.handle);
+            if (tokenError != null){
+                if (_isAborted(cxt)){
+                    r.noResult = true;
+                    r.error = new Exception("no_result");
+                }else{
+                    r.error = tokenError;
                 }
-                _hasSuccessGotResult = true;
-            }else if (msg.equals("token_error")){
-                //token有问题
-                _needRefreshToken = true;
-                _safeCallBackFail(cxt,dB,"token_error", true);
                 return;
-            }else {
-                String record_id = record_id_json.getString("record_id");
-                if (msg.equals("no_result") || msg.equals("db_too_low")){
-                    //没有检测结果，可以自动重试
-                    if ((cxt.alwaysAutoRetry || (cxt.firstTimeBoost && !_hasSuccessGotResult) )&& ((System.currentTimeMillis() - cxt.timeStamp) < cxt.timeOut)) {
-                        if (DEBUG){
-                            Log.d(TAG,"Auto retry");
-                        }
-                        Message msg2 = _notifyThread.mHandler.obtainMessage(RETRY, cxt);
-                        msg2.sendToTarget();
+            }
+            String record_id_result = null;
+            try {
+                record_id_result = recordRequest(bin, _token, cxt.handle);
+            } catch (Exception e) {
+                if (_isAborted(cxt)){
+                    //被stop()或者取消中断了
+                    r.noResult = true;
+                    r.error = new Exception("no_result");
+                }else{
+                    r.error = e;
+                }
+                return;
+            }
+            if (record_id_result == null || record_id_result.isEmpty()){
+                r.error = new Exception("get record id fail");
+                return;
+            }
+            //处理录音检测结果
+            String record_id_url = null;
+            try{
+                JSONObject record_id_json = (JSONObject) new JSONTokener(record_id_result).nextValue();
+                String msg = record_id_json.getString("msg");
+                if (!msg.equals("ok") && !msg.equals("no_result")){
+                    Log.e(TAG,"server return error msg:" + record_id_result);
+                }
+                if (msg.equals("ok")){
+                    BuyfullRecorder.getInstance().reportDecode(bin, BuyfullRecorder.DECODE_OK, dB);
+                }else if (msg.equals("no_result")){
+                    BuyfullRecorder.getInstance().reportDecode(bin, BuyfullRecorder.DECODE_NO_RESULT, dB);
+                }else if (msg.equals("db_too_low")){
+                    BuyfullRecorder.getInstance().reportDecode(bin, BuyfullRecorder.DECODE_DB_TOO_LOW, dB);
+                }
+                if (msg.equals("ok")){
+                    //有检测结果
+                    r.decoded = true;
+                    record_id_url = record_id_json.getString("query_url");
+                    if (record_id_url == null || record_id_url.equals("")){
+                        r.error = new Exception("server_error:" + record_id_result);
                         return;
                     }
-                    _safeCallBack(cxt,dB, record_id, new Exception("no_result"), true);
-                }else{
-                    //其它问题
-                    _safeCallBack(cxt,dB, record_id, new Exception("server_error"), true);
+                }else if (msg.equals("token_error")){
+                    //token有问题，下一次上传前刷新
+                    _needRefreshToken = true;
+                    r.error = new Exception("token_error");
+                    return;
+                }else {
+                    r.result = record_id_json.getString("record_id");
+                    if (msg.equals("no_result") || msg.equals("db_too_low")){
+                        //没有检测结果，可以自动重试
+                        r.noResult = true;
+                        r.error = new Exception("no_result");
+                    }else{
+                        //其它问题
+                        r.error = new Exception("server_error");
+                    }
+                    return;
+                }
+            }catch (Exception e){
+                if (DEBUG) {
+                    Log.d(TAG, "server return invalid record id result:" + record_id_result);
+                }
+                r.error = new Exception("server return invalid record id result" + record_id_result);
+                return;
+            }
+            final NetResult fr = r;
+            final String url = record_id_url;
+            if (_submitNet(new Runnable() {
+                @Override
+                public void run() {
+                    _queryStage(fr, url);
                 }
+            })){
+                r = null;
+            }else{
+                r.error = new Exception("network busy");
+            }
+        }finally {
+            if (r != null){
+                _notifyThread.handler().obtainMessage(NET_RESULT, r).sendToTarget();
+            }
+        }
+    }
 
+    /**
+     * 网络线程：发送请求给业务服务器查询，detectRequest请自行修改
+     */
+    private void _queryStage(NetResult r, String record_id_url){
+        try {
+            if (_isAborted(r.cxt)){
+                r.noResult = true;
+                r.error = new Exception("no_result");
                 return;
             }
-        }catch (Exception e){
-            if (DEBUG) {
-                Log.d(TAG, "server return invalid record id result:" + record_id_result);
+            r.result = detectRequest(record_id_url, _appKey, _deviceInfo, r.cxt.customData, r.cxt.handle);
+        } catch (Exception e) {
+            if (_isAborted(r.cxt)){
+                r.noResult = true;
+                r.error = new Exception("no_result");
+            }else{
+                r.error = e;
+            }
+        } finally {
+            _notifyThread.handler().obtainMessage(NET_RESULT, r).sendToTarget();
+        }
+    }
+
+    /**
+     * 一个窗口的网络请求返回，在BuyfullLoop中调用
+     */
+    private void _onNetResult(NetResult r){
+        DetectContext cxt = r.cxt;
+        --cxt.pending;
+        if (cxt.continuous){
+            //这个窗口处理完了，录音可以取下一个
+            BuyfullRecorder.getInstance().windowDone(cxt.recorderOptions);
+        }
+        if (r.decoded){
+            _hasSuccessGotResult = true;
+        }
+        if (cxt.continuous){
+            if (cxt.finished)
+                return;
+            _safeCallBack(cxt, r.dB, r.result, r.error, true);
+            if (cxt.endPending && cxt.pending == 0){
+                cxt.streamEnded = true;
+                _safeCallBack(cxt, cxt.lastDB, cxt.lastResult, cxt.lastError, true);
             }
-            _safeCallBackFail(cxt,dB,"server return invalid record id result" + record_id_result, true);
             return;
         }
-        if (!_detectStarted){
-            _safeCallBackFail(cxt,dB,"no_result", true);
+        if (cxt.finished)
+            return;
+        if (!r.noResult){
+            //有结果或者出错，不用再等其它窗口
+            _finish(cxt, r.dB, r.result, r.error);
             return;
         }
-        //发送请求给业务服务器查询，detectRequest请自行修改
-        String result = null;
-        try {
-            result = detectRequest(record_id_url, _appKey,_deviceInfo,cxt.customData);
-        } catch (Exception e) {
-            _safeCallBack(cxt,dB,null, e,true);
+        if (!cxt.capturing && _canRetry(cxt)){
+            if (DEBUG){
+                Log.d(TAG,"Auto retry");
+            }
+            cxt.capturing = true;
+            _notifyThread.handler().obtainMessage(RETRY, 0, 0, cxt).sendToTarget();
         }
-
-        _safeCallBack(cxt,dB,result,null,true);
+        _finishOrDefer(cxt, r.dB, r.result, r.error);
     }
+
     /**
      * 请求TOKEN，有了TOKEN后才能使用BUYFULL SDK
      * @param tokenURL      需要自行布署
@@ -398,6 +1037,13 @@ public class BuyfullSDK {
      * @return              token
      */
     public String requestToken(String tokenURL, String appkey, boolean refresh) throws Exception{
+        return requestToken(tokenURL, appkey, refresh, null);
+    }
+
+    /**
+     * 同上，handle不为空时超时不超过检测的截止时间，取消检测时马上中断
+     */
+    public String requestToken(String tokenURL, String appkey, boolean refresh, DetectHandle handle) throws Exception{
         if (tokenURL == null || appkey == null){
             throw new Exception("Please check params");
         }
@@ -410,9 +1056,13 @@ public class BuyfullSDK {
             }
             URL url = new URL(urlString);
             connection = (HttpURLConnection) url.openConnection();
+            if (handle != null && !handle._attach(connection)){
+                throw new Exception("cancelled");
+            }
+            int timeout = (handle != null) ? handle._timeout(1000) : 1000;
             connection.setRequestMethod("GET");
-            connection.setConnectTimeout(1000);
-            connection.setReadTimeout(1000);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
             connection.setDoOutput(false);
             connection.setDoInput(true);
             connection.setUseCaches(false);
@@ -437,6 +1087,9 @@ public class BuyfullSDK {
             error = e;
         } finally {
             if(connection != null) {
+                if (handle != null){
+                    handle._detach(connection);
+                }
                 connection.disconnect(); //将Http连接关闭掉
             }
         }
@@ -452,6 +1105,13 @@ public class BuyfullSDK {
      * @return JSON结果
      */
     public String recordRequest(byte[] binData, String token) throws Exception {
+        return recordRequest(binData, token, null);
+    }
+
+    /**
+     * 同上，handle不为空时超时不超过检测的截止时间，取消检测时马上中断
+     */
+    public String recordRequest(byte[] binData, String token, DetectHandle handle) throws Exception {
         if (binData == null || binData.length <= 0 || token == null){
             throw new Exception("Please check params");
         }
@@ -462,9 +1122,13 @@ public class BuyfullSDK {
             URL url = new URL("https://api.euphonyqr.com/api/decode/v1?" + cmd);
 
             connection = (HttpURLConnection) url.openConnection();
+            if (handle != null && !handle._attach(connection)){
+                throw new Exception("cancelled");
+            }
+            int timeout = (handle != null) ? handle._timeout(1000) : 1000;
             connection.setRequestMethod("POST");
-            connection.setConnectTimeout(1000);
-            connection.setReadTimeout(1000);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
             connection.setDoOutput(true);
             connection.setDoInput(true);
             connection.setUseCaches(false);
@@ -496,6 +1160,9 @@ public class BuyfullSDK {
             error = e;
         } finally {
             if(connection != null) {
+                if (handle != null){
+                    handle._detach(connection);
+                }
                 connection.disconnect(); //将Http连接关闭掉
             }
         }
@@ -565,6 +1232,8 @@ public class BuyfullSDK {
     private volatile static BuyfullSDK      instance;
     private volatile boolean                _detectStarted;
     private volatile boolean                _isDetecting;
+    private int                             _activeDetects = 0;//进行中的检测数，只在BuyfullLoop中使用
+    private boolean                         _stopWhenIdle = false;
     private volatile boolean                _isInitingToken;
     private volatile boolean                _needRefreshToken;
     private volatile boolean                _hasMicphonePermission;
@@ -573,7 +1242,59 @@ public class BuyfullSDK {
     private String                          _detectURL;
     private String                          _token;
     private String                          _deviceInfo;
-    private boolean                         _hasSuccessGotResult;
+    private volatile boolean                _hasSuccessGotResult;
+    private final Object                    _tokenLock = new Object();
+    private TokenFetch                      _tokenFetch;//进行中的TOKEN请求，用_tokenLock保护
+    private ThreadPoolExecutor              _netExecutor;
+    private final ArrayList<DetectHandle>   _liveHandles = new ArrayList<DetectHandle>();//还没有结束的检测，stop()时中断它们的请求
+
+    private static final int NET_THREADS = 2;//上传和查询可以同时进行
+    private static final int NET_QUEUE_SIZE = 8;
+    private static final int MAX_PENDING_UPLOADS = 2;//每个检测同时上传的窗口数
+    private static final long RETRY_HOP = BuyfullRecorder.DEFAULT_HOP;//提前取的下一个窗口的结尾至少晚这么多毫秒
+
+    /**
+     * 网络线程的一步做完后交回BuyfullLoop的结果
+     */
+    private static class NetResult{
+        public final DetectContext  cxt;
+        public final float          dB;
+        public String               result;//业务服务器返回的结果，没有检测结果时为record_id
+        public Exception            error;
+        public boolean              noResult = false;//没有检测结果，可以重试
+        public boolean              decoded = false;//解码服务器有结果
+
+        public NetResult(DetectContext _cxt, float _dB){
+            cxt = _cxt;
+            dB = _dB;
+        }
+    }
+
+    /**
+     * 一次TOKEN请求，等待的网络线程在_tokenLock上等done
+     */
+    private static class TokenFetch{
+        public boolean      done = false;
+        public boolean      aborted = false;//发起的检测被取消或者到了截止时间，不是TOKEN本身的错误
+        public Exception    error;
+    }
+
+    /**
+     * 录音的一个结果，从录音的通知线程交给BuyfullLoop
+     */
+    private static class RecordResult{
+        public final DetectContext                      cxt;
+        public final float                              dB;
+        public final byte[]                             bin;
+        public final BuyfullRecorder.RecordException    error;
+
+        public RecordResult(DetectContext _cxt, float _dB, byte[] _bin, BuyfullRecorder.RecordException _error){
+            cxt = _cxt;
+            dB = _dB;
+            bin = _bin;
+            error = _error;
+        }
+    }
 
     private static final int INIT_MSG = 1;
     private static final int DESTORY = 2;
@@ -581,17 +1302,35 @@ public class BuyfullSDK {
     private static final int SET_USER_ID = 4;
     private static final int DETECT = 5;
     private static final int RETRY = 6;
+    private static final int NET_RESULT = 7;
+    private static final int WHEN_READY = 8;
+    private static final int CANCEL = 9;
+    private static final int RECORD_RESULT = 10;
+    private static final int DEADLINE = 11;
     private static final int DEBUG_UPLOAD = 100;
 
     private static class LooperThread extends Thread implements BuyfullRecorder.IRecordCallback {
-        public Handler mHandler;
-        public volatile boolean threadStarted;
-        public volatile boolean threadEnded;
+        private Handler mHandler;
+        private final CountDownLatch _started = new CountDownLatch(1);
         public LooperThread(String threadName)
         {
             super(threadName);
         }
 
+        /**
+         * 线程启动后才有Handler，刚创建还没启动完时等它，不用轮询
+         */
+        public Handler handler(){
+            while (true){
+                try {
+                    _started.await();
+                    return mHandler;
+                }catch (InterruptedException e){
+
+                }
+            }
+        }
+
         @SuppressLint("HandlerLeak")
         public void run(){
             Looper.prepare();
@@ -611,22 +1350,55 @@ public class BuyfullSDK {
 
                         case DETECT:
                             if (instance != null)
-                                instance._detect((DetectContext)msg.obj, false);
+                                instance._detect((DetectContext)msg.obj, false, false);
                             break;
 
                         case RETRY:
                             if (instance != null)
-                                instance._detect((DetectContext)msg.obj, true);
+                                instance._detect((DetectContext)msg.obj, true, msg.arg1 == 1);
+                            break;
+
+                        case CANCEL:
+                            if (instance != null)
+                                instance._cancel((DetectContext) msg.obj);
+                            break;
+
+                        case WHEN_READY:
+                            BuyfullRecorder.getInstance().whenReady((BuyfullRecorder.IReadyCallback) msg.obj, BuyfullRecorder.DIRECT_EXECUTOR);
+                            break;
+
+                        case DEADLINE:
+                            if (instance != null)
+                                instance._onDeadline((DetectContext) msg.obj);
+                            break;
+
+                        case RECORD_RESULT:
+                            if (instance != null){
+                                RecordResult r = (RecordResult) msg.obj;
+                                instance.onRecord(r.cxt, r.dB, r.bin, r.error);
+                            }
+                            break;
+
+                        case NET_RESULT:
+                            if (instance != null)
+                                instance._onNetResult((NetResult) msg.obj);
                             break;
 
                         case DEBUG_UPLOAD:
                             if (instance != null) {
-                                try {
-                                    String result = instance._debugUploadRequest((String)msg.obj);
-                                    Log.d(TAG, "debug upload:" + result);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
+                                final String record_id = (String)msg.obj;
+                                final BuyfullSDK sdk = instance;
+                                sdk._submitNet(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        try {
+                                            String result = sdk._debugUploadRequest(record_id);
+                                            Log.d(TAG, "debug upload:" + result);
+                                        } catch (Exception e) {
+                                            e.printStackTrace();
+                                        }
+                                    }
+                                });
                             }
                             break;
                         case DESTORY:
@@ -635,11 +1407,13 @@ public class BuyfullSDK {
                     }
                 }
             };
-            threadStarted = true;
+            _started.countDown();
             Looper.loop();
-            threadEnded = true;
         }
 
+        /**
+         * 在录音的通知线程直接调用，取出cxt后交给BuyfullLoop，检测的状态只在BuyfullLoop中使用
+         */
         @Override
         public void onRecord(JSONObject options, float dB, byte[] bin, BuyfullRecorder.RecordException error) {
             if (instance == null)
@@ -651,33 +1425,41 @@ public class BuyfullSDK {
                 e.printStackTrace();
                 return;
             }
-            options.remove("cxt");
             if (cxt == null){
                 Log.e(TAG,"cxt is null, not allowed");
                 return;
             }
-            instance.onRecord(cxt, dB, bin, error);
+            //连续检测的每个窗口都用同一个options
+            if (!cxt.continuous){
+                options.remove("cxt");
+            }
+            mHandler.obtainMessage(RECORD_RESULT, new RecordResult(cxt, dB, bin, error)).sendToTarget();
         }
     }
+    /**
+     * 只启动线程，不等它启动完，getInstance()马上返回
+     */
     private void init(){
-        _notifyThread = new LooperThread("BuyfullLoop");
-        _notifyThread.start();
-        while (!_notifyThread.threadStarted)
-        {
-            try{
-                Thread.sleep(100);
+        //网络请求都在这里做，不占用BuyfullLoop
+        _netExecutor = new ThreadPoolExecutor(NET_THREADS, NET_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(NET_QUEUE_SIZE), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "BuyfullNet");
             }
-            catch (Exception e)
-            {
+        });
+        _netExecutor.allowCoreThreadTimeOut(true);
 
-            }
-        }
+        _notifyThread = new LooperThread("BuyfullLoop");
+        _notifyThread.start();
     }
 
     private void _safeCallBackFail(DetectContext cxt, final float dB, String exception, boolean finish){
         try{
-            if (finish){
-                _isDetecting = false;
+            //连续检测开始后、结束前只是一个窗口的结果，不清空cxt
+            boolean streaming = cxt.continuous && cxt.active && !cxt.streamEnded;
+            if (finish && !streaming){
+                _endDetect(cxt);
 
                 if (DEBUG){
                     Log.d(TAG,"Detect use time: " + (System.currentTimeMillis() - cxt.timeStamp));
@@ -686,13 +1468,15 @@ public class BuyfullSDK {
             final IDetectCallback cb = cxt.callback;
             final JSONObject options = cxt.options;
             final Exception err = new Exception(exception);
-            Handler handler = cxt.callbackHandler;
+            Executor executor = cxt.callbackExecutor;
 
-            cxt.callback = null;
-            cxt.callbackHandler = null;
-            cxt.options = null;
+            if (!streaming){
+                cxt.callback = null;
+                cxt.callbackExecutor = null;
+                cxt.options = null;
+            }
 
-            handler.post(new Runnable() {
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -709,21 +1493,25 @@ public class BuyfullSDK {
 
     private void _safeCallBack(DetectContext cxt,final float dB,final String json,final Exception error, boolean finish){
         try{
-            if (finish){
-                _isDetecting = false;
+            //连续检测开始后、结束前只是一个窗口的结果，不清空cxt
+            boolean streaming = cxt.continuous && cxt.active && !cxt.streamEnded;
+            if (finish && !streaming){
+                _endDetect(cxt);
                 if (DEBUG){
                     Log.d(TAG,"Detect use time: " + (System.currentTimeMillis() - cxt.timeStamp));
                 }
             }
             final IDetectCallback cb = cxt.callback;
             final JSONObject options = cxt.options;
-            Handler handler = cxt.callbackHandler;
+            Executor executor = cxt.callbackExecutor;
 
-            cxt.callback = null;
-            cxt.callbackHandler = null;
-            cxt.options = null;
+            if (!streaming){
+                cxt.callback = null;
+                cxt.callbackExecutor = null;
+                cxt.options = null;
+            }
 
-            handler.post(new Runnable() {
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -738,6 +1526,43 @@ public class BuyfullSDK {
             e.printStackTrace();
         }
     }
+    /**
+     * 一个检测结束，最后一个结束时按需要停止录音
+     */
+    private void _endDetect(DetectContext cxt){
+        if (!cxt.active)
+            return;
+        cxt.active = false;
+        _notifyThread.handler().removeMessages(DEADLINE, cxt);
+        synchronized (_liveHandles){
+            _liveHandles.remove(cxt.handle);
+        }
+        --_activeDetects;
+        _isDetecting = _activeDetects > 0;
+        if (_activeDetects == 0 && _stopWhenIdle){
+            _stopWhenIdle = false;
+            BuyfullRecorder.getInstance().stop();
+        }
+    }
+
+    private void _safeLevelCallBack(DetectContext cxt, final float dB){
+        try{
+            final IContinuousCallback cb = (IContinuousCallback) cxt.callback;
+            final JSONObject options = cxt.options;
+            cxt.callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        cb.onLevel(options, dB);
+                    }catch (Exception e){
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }catch (Exception e){
+            e.printStackTrace();
+        }
+    }
     void _doInitContext(Context context){
         JSONObject deviceInfo = new JSONObject();
 
@@ -750,6 +1575,7 @@ public class BuyfullSDK {
         }
 
         if (context != null){
+            BuyfullRecorder.getInstance().setContext(context);
             PackageManager pkgManager = context.getPackageManager();
             _hasMicphonePermission = pkgManager.checkPermission(Manifest.permission.RECORD_AUDIO, context.getPackageName()) == PackageManager.PERMISSION_GRANTED;
 
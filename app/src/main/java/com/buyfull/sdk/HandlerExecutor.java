@@ -0,0 +1,37 @@
+package com.buyfull.sdk;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 把回调post到一个线程的Looper，不指定Executor时用调用线程的。
+ * 每个线程只创建一个，不用每次请求都new一个Handler
+ */
+final class HandlerExecutor implements Executor{
+    private static final ThreadLocal<HandlerExecutor> _current = new ThreadLocal<HandlerExecutor>();
+
+    private final Handler _handler;
+
+    private HandlerExecutor(Handler handler){
+        _handler = handler;
+    }
+
+    /**
+     * 调用线程的HandlerExecutor，调用线程必须有Looper
+     * @return
+     */
+    public static HandlerExecutor current(){
+        HandlerExecutor executor = _current.get();
+        if (executor == null){
+            executor = new HandlerExecutor(new Handler());
+            _current.set(executor);
+        }
+        return executor;
+    }
+
+    @Override
+    public void execute(Runnable command){
+        _handler.post(command);
+    }
+}
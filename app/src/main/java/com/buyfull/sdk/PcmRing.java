@@ -0,0 +1,166 @@
+package com.buyfull.sdk;
+
+import com.buyfull.dsp.PcmWindow;
+
+/**
+ * 单写多读的录音环形缓冲区，按16bit单声道的采样保存。
+ * 写线程（录音线程）用writeOffset()/writableSize()拿到可写的一段，直接把AudioRecord读到buffer()里，
+ * 然后commit()发布。位置用从0开始单调增加的采样计数表示，不会回绕。
+ * 每次commit()同时记录这一块结尾的采样位置、时间戳和分贝，读线程按采样位置查找。
+ * 读线程不加锁，复制完后检查数据有没有在复制过程中被写线程覆盖，被覆盖时返回false。
+ * 也可以用window()直接拿一段的只读视图交给getDB/buildBin，用完后用isValid()检查是否被覆盖。
+ */
+final class PcmRing{
+    private static final int        BLOCK_HISTORY = 32;
+
+    private final short[]           _buffer;
+    private final int               _mask;
+    private final int               _maxWrite;
+    private volatile long           _written = 0;
+
+    private final long[]            _blockEnds = new long[BLOCK_HISTORY];
+    private final long[]            _blockTimes = new long[BLOCK_HISTORY];
+    private final float[]           _blockDBs = new float[BLOCK_HISTORY];
+    private volatile long           _blocks = 0;
+
+    /**
+     * @param capacity  采样数，必须是2的幂
+     * @param maxWrite  每次写入的最大采样数
+     */
+    public PcmRing(int capacity, int maxWrite){
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0 || maxWrite <= 0 || maxWrite >= capacity)
+            throw new IllegalArgumentException("bad ring size");
+        _buffer = new short[capacity];
+        _mask = capacity - 1;
+        _maxWrite = maxWrite;
+    }
+
+    public int capacity(){
+        return _buffer.length;
+    }
+
+    /**
+     * 已经发布的采样总数
+     */
+    public long written(){
+        return _written;
+    }
+
+    /**
+     * 最后一块的时间戳，还没有写入时返回-1
+     */
+    public long lastTimeStamp(){
+        long blocks = _blocks;
+        if (blocks <= 0)
+            return -1;
+        return _blockTimes[(int)((blocks - 1) % BLOCK_HISTORY)];
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    //以下只在写线程调用
+    public short[] buffer(){
+        return _buffer;
+    }
+
+    public int writeOffset(){
+        return (int)(_written & _mask);
+    }
+
+    /**
+     * 从writeOffset()开始不回绕能写的采样数
+     */
+    public int writableSize(){
+        return Math.min(_maxWrite, _buffer.length - writeOffset());
+    }
+
+    /**
+     * 把最近的size个采样按小端16bit复制到dst，包括已经写好还没有commit()的pending个采样
+     */
+    public void copyTail(int pending, int size, byte[] dst){
+        int pos = (int)((_written + pending - size) & _mask);
+        for (int index = 0;index < size * 2;index += 2){
+            short value = _buffer[pos];
+            dst[index] = (byte)value;
+            dst[index + 1] = (byte)(value >> 8);
+            pos = (pos + 1) & _mask;
+        }
+    }
+
+    /**
+     * 发布写好的size个采样，并记录这一块的时间戳和分贝
+     */
+    public void commit(int size, long timeStamp, float dB){
+        long end = _written + size;
+        int index = (int)(_blocks % BLOCK_HISTORY);
+        _blockEnds[index] = end;
+        _blockTimes[index] = timeStamp;
+        _blockDBs[index] = dB;
+        _written = end;
+        _blocks = _blocks + 1;
+    }
+
+    ////////////////////////////////////////////////////////////////////////
+    /**
+     * 把从start开始的size个采样按小端16bit复制到dst的dstOffset处
+     * @return 数据还没写到或者已经被覆盖时返回false
+     */
+    public boolean read(long start, int size, byte[] dst, int dstOffset){
+        if (start < 0 || size < 0 || start + size > _written)
+            return false;
+        if (!isValid(start))
+            return false;
+
+        int pos = (int)(start & _mask);
+        int end = dstOffset + size * 2;
+        for (int index = dstOffset;index < end;index += 2){
+            short value = _buffer[pos];
+            dst[index] = (byte)value;
+            dst[index + 1] = (byte)(value >> 8);
+            pos = (pos + 1) & _mask;
+        }
+        //复制过程中写线程可能已经覆盖了开头的数据
+        return isValid(start);
+    }
+
+    /**
+     * 从start开始的size个采样的只读视图，不复制数据。数据还没写到或者已经被覆盖时返回null
+     */
+    public PcmWindow window(long start, int size){
+        if (start < 0 || size < 0 || start + size > _written || !isValid(start))
+            return null;
+        return PcmWindow.ring(_buffer, start, size, 1);
+    }
+
+    /**
+     * 找结尾位置离endSample最近（不超过tolerance个采样）的一块的分贝，没有时返回NaN
+     */
+    public float levelAt(long endSample, long tolerance){
+        long blocks = _blocks;
+        float dB = Float.NaN;
+        long best = tolerance + 1;
+        long bestBlock = -1;
+        for (long block = Math.max(0, blocks - BLOCK_HISTORY);block < blocks;++block){
+            int index = (int)(block % BLOCK_HISTORY);
+            long end = _blockEnds[index];
+            float value = _blockDBs[index];
+            long distance = Math.abs(end - endSample);
+            if (Float.isNaN(value) || distance >= best)
+                continue;
+            best = distance;
+            bestBlock = block;
+            dB = value;
+        }
+        //读的过程中找到的这块已经被写线程改写了，就不用这次的结果
+        if (bestBlock >= 0 && bestBlock < _blocks - BLOCK_HISTORY)
+            return Float.NaN;
+        return dB;
+    }
+
+    /**
+     * 从start开始的数据现在是否还没有被覆盖
+     */
+    public boolean isValid(long start){
+        //写线程正在写的那段（最多_maxWrite个采样）也不能读
+        return start >= _written + _maxWrite - _buffer.length;
+    }
+}
@@ -129,6 +129,13 @@ public class MainActivity extends AppCompatActivity {
 //                options.put("alwaysAutoRetry", true);//是否(一直)在检测不成功时自动重试(直到超时）
 //                options.put("firstTimeBoost", true);//初次检测时，如果检测不成功，会自动重试（仅第一次）
 //                options.put("stopAfterReturn", true);//是否在录音返回后自动停止录音，再次启动检测会比较慢
+//                options.put("preRoll", 5);//预录：检测返回后继续录音5秒，期间再次检测直接用已经录好的声音，不用再等1秒多
+//                options.put("hop", 550);//只用于startContinuous连续检测：每隔550毫秒检测一次最新的1.1秒录音，窗口之间重叠
+//                options.put("zoomBin", true);//是否用窄带(zoom FFT)的方法计算BIN，更快且占用内存更少
+//                options.put("fixedPoint", true);//是否用定点运算计算分贝和BIN，适合没有硬件浮点的设备
+//                options.put("parallelFFT", true);//是否用多线程计算BIN，多核手机上可以更快拿到结果
+//                options.put("engine", "zoom");//计算引擎：reference, zoom, fixed, parallel，可以代替上面三个参数
+//                options.put("crossCheck", 0.05);//抽查5%的录音，同时用reference引擎计算，比对结果用BuyfullSDK.getEngineStats()查看
             }catch (Exception e){}
 
             BuyfullSDK.getInstance().detect(options, new BuyfullSDK.IDetectCallback() {
@@ -138,6 +145,9 @@ public class MainActivity extends AppCompatActivity {
                         String reason = error.getLocalizedMessage();
                         if (reason.equals("record_stop")){
                             resultText.setText("recorder stop");
+                        } else if (reason.equals("cancelled")) {
+                            //detect返回的DetectHandle调用了cancel()，不要再重试
+                            resultText.setText("detect cancelled");
                         } else if (reason.equals("no_result")) {
                             lastReqID = result;
                             if (BuyfullSDK.getInstance().isStarted()){
@@ -0,0 +1,44 @@
+package com.buyfull.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * 性能测试用的录音数据：带内几个单音 + 一个低频单音 + 白噪声，48kHz单声道
+ */
+final class BenchmarkSignals {
+    private BenchmarkSignals(){
+    }
+
+    /**
+     * @param frames    帧数
+     * @param bits      16或32(float)
+     */
+    static byte[] pcm(int frames, int bits){
+        Random random = new Random(frames * 31 + bits);
+        ByteBuffer buffer = ByteBuffer.allocate(frames * (bits / 8)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; ++i){
+            double t = (double) i / BuyfullDsp.SAMPLE_RATE;
+            double v = 0.01 * Math.sin(2 * Math.PI * 18000 * t)
+                    + 0.006 * Math.sin(2 * Math.PI * 19500 * t)
+                    + 0.1 * Math.sin(2 * Math.PI * 440 * t)
+                    + 0.001 * random.nextGaussian();
+            if (bits == 16){
+                buffer.putShort((short) Math.round(v * 32767));
+            }else{
+                buffer.putFloat((float) v);
+            }
+        }
+        return buffer.array();
+    }
+
+    static float[] random(int count, long seed){
+        Random random = new Random(seed);
+        float[] result = new float[count];
+        for (int i = 0; i < count; ++i){
+            result[i] = (float) random.nextGaussian();
+        }
+        return result;
+    }
+}
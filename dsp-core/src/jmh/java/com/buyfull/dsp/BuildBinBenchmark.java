@@ -0,0 +1,39 @@
+package com.buyfull.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * buildBin：1.1秒（52800帧）48kHz录音生成BIN，比较各个实现。
+ * fixed只支持16bit，32bit时与reference相同。
+ */
+@State(Scope.Thread)
+public class BuildBinBenchmark {
+    @Param({"16", "32"})
+    public int bits;
+
+    @Param({"reference", "zoom", "fixed", "parallel"})
+    public String engine;
+
+    private byte[] pcm;
+    private boolean zoomBin;
+    private boolean fixedPoint;
+    private boolean parallelFFT;
+
+    @Setup
+    public void setup() throws Exception{
+        pcm = BenchmarkSignals.pcm(BuyfullDsp.SAMPLE_RATE * BuyfullDsp.BIN_PERIOD / 1000, bits);
+        zoomBin = "zoom".equals(engine);
+        fixedPoint = "fixed".equals(engine);
+        parallelFFT = "parallel".equals(engine);
+        buildBin();
+    }
+
+    @Benchmark
+    public byte[] buildBin() throws Exception{
+        return BuyfullDsp.buildBin(pcm, BuyfullDsp.SAMPLE_RATE, BuyfullDsp.BIN_PERIOD, 1, bits, zoomBin, fixedPoint, parallelFFT);
+    }
+}
@@ -0,0 +1,43 @@
+package com.buyfull.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * compress：把逆FFT后的6600个点压缩成8bit，浮点和定点两个版本
+ */
+@State(Scope.Thread)
+public class CompressBenchmark {
+    private static final int SAMPLES = BuyfullDsp.SAMPLE_RATE * BuyfullDsp.BIN_PERIOD / 1000 / 8;
+
+    private float[] input;
+    private int[] fixedInput;
+    private ByteBuffer output;
+
+    @Setup
+    public void setup(){
+        input = BenchmarkSignals.random(SAMPLES, 3);
+        fixedInput = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; ++i){
+            fixedInput[i] = (int) (input[i] * (1 << 24));
+        }
+        output = ByteBuffer.allocate(SAMPLES + 8).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public int compress(){
+        output.clear();
+        return BuyfullDsp.compress(input, output, SAMPLES);
+    }
+
+    @Benchmark
+    public int compressFixed(){
+        output.clear();
+        return BuyfullDsp.compress(fixedInput, 1.0f / (1 << 24), output, SAMPLES);
+    }
+}
@@ -0,0 +1,89 @@
+package com.buyfull.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * FFT各个实现在实际用到的长度上的耗时：2048(getDB)，8192(buildBin的逆FFT和zoom FFT)，65536(buildBin)。
+ * 每次都先把输入拷贝到工作数组，拷贝的时间也算在内。
+ */
+@State(Scope.Thread)
+public class FFTBenchmark {
+    @Param({"11", "13", "16"})
+    public int log2n;
+
+    private FFTPlan plan;
+    private float[] inputReal;
+    private float[] inputImag;
+    private int[] inputFixedReal;
+    private int[] inputFixedImag;
+    private float[] re;
+    private float[] im;
+    private int[] fixedRe;
+    private int[] fixedIm;
+
+    @Setup
+    public void setup(){
+        plan = FFTPlan.get(log2n);
+        int n = 1 << log2n;
+        inputReal = BenchmarkSignals.random(n, 1);
+        inputImag = BenchmarkSignals.random(n, 2);
+        inputFixedReal = new int[n];
+        inputFixedImag = new int[n];
+        for (int i = 0; i < n; ++i){
+            inputFixedReal[i] = (int) (inputReal[i] * (1 << 26));
+            inputFixedImag[i] = (int) (inputImag[i] * (1 << 26));
+        }
+        re = new float[n];
+        im = new float[n];
+        fixedRe = new int[n / 2 + 1];
+        fixedIm = new int[n / 2 + 1];
+        //预先创建计划里的表，不计入测试时间
+        forward();
+        inverse();
+        forwardReal();
+        forwardRealFixed();
+    }
+
+    @Benchmark
+    public float[] forward(){
+        System.arraycopy(inputReal, 0, re, 0, re.length);
+        System.arraycopy(inputImag, 0, im, 0, im.length);
+        plan.forward(re, im);
+        return re;
+    }
+
+    @Benchmark
+    public float[] forwardParallel(){
+        System.arraycopy(inputReal, 0, re, 0, re.length);
+        System.arraycopy(inputImag, 0, im, 0, im.length);
+        plan.forwardParallel(re, im);
+        return re;
+    }
+
+    @Benchmark
+    public float[] inverse(){
+        System.arraycopy(inputReal, 0, re, 0, re.length);
+        System.arraycopy(inputImag, 0, im, 0, im.length);
+        plan.inverse(re, im);
+        return re;
+    }
+
+    @Benchmark
+    public float[] forwardReal(){
+        System.arraycopy(inputReal, 0, re, 0, re.length);
+        plan.forwardReal(re, im);
+        return re;
+    }
+
+    @Benchmark
+    public int[] forwardRealFixed(){
+        System.arraycopy(inputFixedReal, 0, fixedRe, 0, fixedRe.length - 1);
+        System.arraycopy(inputFixedImag, 0, fixedIm, 0, fixedIm.length - 1);
+        plan.forwardRealFixed(fixedRe, fixedIm);
+        return fixedRe;
+    }
+}
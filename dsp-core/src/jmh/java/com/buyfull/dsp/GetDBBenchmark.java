@@ -0,0 +1,32 @@
+package com.buyfull.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * getDB：从一块录音中取2048帧计算带内分贝。32bit输入没有定点实现，fixedPoint为true时仍走浮点。
+ */
+@State(Scope.Thread)
+public class GetDBBenchmark {
+    @Param({"16", "32"})
+    public int bits;
+
+    @Param({"false", "true"})
+    public boolean fixedPoint;
+
+    private byte[] pcm;
+
+    @Setup
+    public void setup() throws Exception{
+        pcm = BenchmarkSignals.pcm(4096, bits);
+        getDB();
+    }
+
+    @Benchmark
+    public float getDB() throws Exception{
+        return BuyfullDsp.getDB(pcm, pcm.length, BuyfullDsp.SAMPLE_RATE, 1, bits, true, fixedPoint);
+    }
+}
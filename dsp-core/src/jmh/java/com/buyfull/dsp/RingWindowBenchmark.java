@@ -0,0 +1,46 @@
+package com.buyfull.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 直接在16bit环形缓冲区上计算（录音时的用法），窗口跨过缓冲区结尾。
+ * 与BuildBinBenchmark/GetDBBenchmark的16bit结果对比，差别就是读PcmWindow的开销。
+ */
+@State(Scope.Thread)
+public class RingWindowBenchmark {
+    private static final int RING_SIZE = 128 * 1024;
+
+    @Param({"reference", "zoom", "fixed", "parallel"})
+    public String engine;
+
+    private PcmWindow window;
+    private DspEngine dspEngine;
+
+    @Setup
+    public void setup() throws Exception{
+        int frames = BuyfullDsp.SAMPLE_RATE * BuyfullDsp.BIN_PERIOD / 1000;
+        byte[] pcm = BenchmarkSignals.pcm(frames, 16);
+        short[] ring = new short[RING_SIZE];
+        long start = RING_SIZE - frames / 2;
+        for (int i = 0; i < frames; ++i){
+            ring[(int) ((start + i) & (RING_SIZE - 1))] = (short) ((pcm[2 * i] & 0xff) | (pcm[2 * i + 1] << 8));
+        }
+        window = PcmWindow.ring(ring, start, frames, 1);
+        dspEngine = DspEngines.get(engine);
+        buildBin();
+    }
+
+    @Benchmark
+    public byte[] buildBin() throws Exception{
+        return dspEngine.buildBin(window, BuyfullDsp.SAMPLE_RATE, BuyfullDsp.BIN_PERIOD);
+    }
+
+    @Benchmark
+    public float getDB() throws Exception{
+        return dspEngine.getDB(window, BuyfullDsp.SAMPLE_RATE, true);
+    }
+}
@@ -0,0 +1,404 @@
+package com.buyfull.dsp;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 声波检测用到的信号处理：带内分贝(getDB)和压缩BIN(buildBin)。
+ * 纯Java实现，不依赖Android，可以直接在JVM上测试和跑性能测试。
+ * 每次计算用单独的工作区，所有方法都可以在多个线程中同时调用。
+ */
+public final class BuyfullDsp {
+    public static final int     SAMPLE_RATE = 48000;    //只支持48000的采样率
+    public static final float   THRESHOLD_DB = -150;    //没有信号时的分贝数
+    public static final int     DB_FRAMES = 2048;       //getDB计算的帧数
+    public static final int     BIN_PERIOD = 1100;      //buildBin使用的录音时长ms
+
+    static final float  Pi = 3.14159265358979f;
+    static final int    N_WAVE = (64*1024);
+    static final int    LOG2_N_WAVE = (6+10);
+    static final float  fsin[] = _sinTable();
+
+    private BuyfullDsp(){
+    }
+
+    /**
+     * 提前算好正弦表和getDB、buildBin（浮点）用到的FFT表，可以在后台线程调用，第一次计算时就不用再等。
+     * 不调用时在第一次用到时计算。工作区的数组仍然在第一次计算时才分配
+     */
+    public static void prepare(){
+        FFTPlan.get(11).prepareReal(true);              //getDB
+        FFTPlan.get(LOG2_N_WAVE).prepareReal(false);    //buildBin
+        FFTPlan.get(13).prepareComplex();               //buildBin的逆FFT
+    }
+
+    /**
+     * 正弦表在类加载时算好，之后只读，多个线程可以同时使用
+     */
+    private static float[] _sinTable(){
+        float[] table = new float[N_WAVE];
+        for (int i=0; i<N_WAVE; i++){
+            table[i] = (float)Math.sin(2*Pi/N_WAVE*i);
+        }
+        return table;
+    }
+
+    static double toDB(double amp){
+        if (amp <= 0 || Double.isNaN(amp) || Double.isInfinite(amp))
+            return THRESHOLD_DB;
+
+        return Math.log(amp) * (8.6858896380650365530225783783322);
+    }
+
+    /**
+     * 计算最后DB_FRAMES帧（isLastFrame为false时为再往前1秒）的带内平均幅度的分贝数
+     * @param pcmData       PCM数据
+     * @param pcmDataSize   PCM数据的有效长度
+     * @param sampleRate    只支持SAMPLE_RATE
+     * @param channels      1或2
+     * @param bits          16或32(float)
+     * @param isLastFrame   是否取最后的DB_FRAMES帧
+     * @param fixedPoint    是否用定点运算（仅16bit）
+     * @return 分贝数，全为0时返回THRESHOLD_DB
+     * @throws Exception    参数不正确
+     */
+    public static float getDB(byte[] pcmData, int pcmDataSize, int sampleRate, int channels, int bits, boolean isLastFrame, boolean fixedPoint) throws Exception{
+        if (pcmData == null){
+            throw (new Exception("invalid pcmData or outBin:"));
+        }
+        return getDB(PcmWindow.wrap(pcmData, pcmDataSize, channels, bits), sampleRate, isLastFrame, fixedPoint);
+    }
+
+    /**
+     * 与getDB(byte[], ...)相同，直接从PcmWindow读数据
+     * @param window        PCM数据
+     * @param sampleRate    只支持SAMPLE_RATE
+     * @param isLastFrame   是否取最后的DB_FRAMES帧
+     * @param fixedPoint    是否用定点运算（仅16bit）
+     * @return 分贝数，全为0时返回THRESHOLD_DB
+     * @throws Exception    参数不正确
+     */
+    public static float getDB(PcmWindow window, int sampleRate, boolean isLastFrame, boolean fixedPoint) throws Exception{
+        if (window == null){
+            throw (new Exception("invalid pcmData or outBin:"));
+        }
+        int stepCount = DB_FRAMES;
+        int channels = window.channels;
+        int bits = window.bits;
+        int start = 0;
+        if (!(sampleRate == SAMPLE_RATE)){
+            throw (new Exception("invalid sample rate:" + sampleRate));
+        }else if (channels < 1 || channels > 2){
+            throw (new Exception("invalid channel count:" + channels));
+        }else if (!(bits == 16 || bits == 32)){
+            throw (new Exception("invalid bit count:" + bits));
+        }else{
+            start = window.frames - stepCount;
+            if (!isLastFrame){
+                start -= sampleRate;
+            }
+            if (start < 0){
+                throw (new Exception("invalid pcmData length:" + window.frames * window.frameSize));
+            }
+        }
+
+        int s = 836, l = 90;
+        if (sampleRate == SAMPLE_RATE){
+            s = 768;
+            l = 84;
+        }
+
+        DspWorkspace ws = DspWorkspace.acquire();
+        try {
+            if (fixedPoint && bits == 16){
+                int[] fr = ws.fixedReal(stepCount / 2 + 1);
+                int[] fi = ws.fixedImag(stepCount / 2 + 1);
+                int shift = _loadFixed(window, start, stepCount, fr, fi);
+                if (shift < 0)
+                    return THRESHOLD_DB;
+                double db = FFTPlan.get(11).bandMagnitudeFixed(fr, fi, s, l);
+                //整数x对应浮点的x / 2^(15 + shift)
+                db = Math.scalb(db, -(15 + shift)) / l;
+                return (float)toDB(db);
+            }
+
+            boolean allZero = true;
+            float[] re = ws.real(stepCount);
+            float[] im = ws.imag(stepCount);
+            for (int index = 0;index < stepCount;++index){
+                re[index] = window.sample(start + index);
+                if (re[index] != 0)
+                    allZero = false;
+            }
+            if (allZero)
+                return THRESHOLD_DB;
+
+            //只计算带内的84个频点，不做完整的2048点FFT
+            double db = FFTPlan.get(11).bandMagnitude(re, im, s, l);
+            db /= l;
+            db = toDB(db);
+
+            return (float)db;
+        }finally {
+            DspWorkspace.release(ws);
+        }
+    }
+
+    /**
+     * 把16bit PCM直接读成整数，按forwardRealFixed()的格式打包（偶数点在fr，奇数点在fi），
+     * 然后整体左移到最大值小于2^29（块浮点），返回左移的位数，全为0时返回-1
+     */
+    private static int _loadFixed(PcmWindow window, int start, int stepCount, int[] fr, int[] fi){
+        int bitsOr = 0;
+        int half = (stepCount + 1) >> 1;
+        fi[half - 1] = 0;
+        for (int t = 0; t < stepCount; ++t){
+            int v = window.sample16(start + t);
+            if ((t & 1) == 0){
+                fr[t >> 1] = v;
+            }else{
+                fi[t >> 1] = v;
+            }
+            bitsOr |= (v < 0) ? -v : v;
+        }
+        if (bitsOr == 0)
+            return -1;
+
+        int shift = 29 - (32 - Integer.numberOfLeadingZeros(bitsOr));
+        for (int i = 0; i < half; ++i){
+            fr[i] <<= shift;
+            fi[i] <<= shift;
+        }
+        return shift;
+    }
+
+    /**
+     * buildBin的定点版本，结果放在ws.fixedReal()的[0, 8192)中，返回整数换算成浮点的比例
+     */
+    private static float _buildFixed(DspWorkspace ws, PcmWindow window, int start, int stepCount, int s){
+        //实数FFT打包后只需要一半，再加上n/2这个频点
+        int[] fr = ws.fixedReal(N_WAVE / 2 + 1);
+        int[] fi = ws.fixedImag(N_WAVE / 2 + 1);
+        int shift = _loadFixed(window, start, stepCount, fr, fi);
+        if (shift < 0){
+            Arrays.fill(fr, 0, 8192, 0);
+            return 0;
+        }
+        int half = N_WAVE / 2;
+        Arrays.fill(fr, (stepCount + 1) >> 1, half, 0);
+        Arrays.fill(fi, (stepCount + 1) >> 1, half, 0);
+        FFTPlan.get(LOG2_N_WAVE).forwardRealFixed(fr, fi);
+
+        System.arraycopy(fr,s,fr,0,4096);
+        System.arraycopy(fi,s,fi,0,4096);
+        Arrays.fill(fr,4096,8192,0);
+        Arrays.fill(fi,4096,8192,0);
+
+        //保留的频点一般比全频带小很多，逆FFT之前重新左移到最大分量小于2^30
+        int bitsOr = 0;
+        for (int i = 0; i < 4096; ++i){
+            bitsOr |= (fr[i] < 0 ? -fr[i] : fr[i]) | (fi[i] < 0 ? -fi[i] : fi[i]);
+        }
+        int shift2 = (bitsOr == 0) ? 0 : 30 - (32 - Integer.numberOfLeadingZeros(bitsOr));
+        if (shift2 > 0){
+            for (int i = 0; i < 4096; ++i){
+                fr[i] <<= shift2;
+                fi[i] <<= shift2;
+            }
+        }
+        FFTPlan.get(13).inverseFixed(fr, fi);
+        //输入x对应浮点x / 2^(15 + shift)，正向FFT两边都是1/n，逆FFT定点多了1/8192
+        return Math.scalb(1.0f, -(2 + shift + shift2));
+    }
+
+    /**
+     * 用最后BIN_PERIOD毫秒的录音生成压缩后的BIN数据
+     * @param pcmData           PCM数据
+     * @param sampleRate        只支持SAMPLE_RATE
+     * @param recordPeriodInMS  录音时长，不能小于BIN_PERIOD
+     * @param channels          1或2
+     * @param bits              16或32(float)
+     * @param zoomBin           是否用窄带(zoom FFT)的方法计算
+     * @param fixedPoint        是否用定点运算（仅16bit，优先于zoomBin）
+     * @param parallelFFT       是否用多线程计算65536点FFT
+     * @return BIN数据
+     * @throws Exception        参数不正确
+     */
+    public static byte[] buildBin(byte[] pcmData, int sampleRate, int recordPeriodInMS, int channels, int bits, boolean zoomBin, boolean fixedPoint, boolean parallelFFT) throws Exception{
+        if (pcmData == null){
+            throw (new Exception("invalid pcmData or outBin:"));
+        }
+        return buildBin(PcmWindow.wrap(pcmData, pcmData.length, channels, bits), sampleRate, recordPeriodInMS, zoomBin, fixedPoint, parallelFFT);
+    }
+
+    /**
+     * 与buildBin(byte[], ...)相同，直接从PcmWindow读数据，使用窗口最后BIN_PERIOD毫秒
+     * @param window            PCM数据
+     * @param sampleRate        只支持SAMPLE_RATE
+     * @param recordPeriodInMS  录音时长，不能小于BIN_PERIOD
+     * @param zoomBin           是否用窄带(zoom FFT)的方法计算
+     * @param fixedPoint        是否用定点运算（仅16bit，优先于zoomBin）
+     * @param parallelFFT       是否用多线程计算65536点FFT
+     * @return BIN数据
+     * @throws Exception        参数不正确
+     */
+    public static byte[] buildBin(PcmWindow window, int sampleRate, int recordPeriodInMS, boolean zoomBin, boolean fixedPoint, boolean parallelFFT) throws Exception{
+        if (window == null){
+            throw (new Exception("invalid pcmData or outBin:"));
+        }
+        int pcmDataSize = window.frames * window.frameSize;
+        int channels = window.channels;
+        int bits = window.bits;
+        int start = 0;
+        int stepCount = (sampleRate * recordPeriodInMS) / 1000;
+        if (recordPeriodInMS < BIN_PERIOD){
+            throw (new Exception("invalid pcmData length:" + pcmDataSize));
+        }else{
+            stepCount = sampleRate * BIN_PERIOD / 1000;
+            start = window.frames - stepCount;
+            if (start < 0){
+                throw (new Exception("invalid pcmData length:" + pcmDataSize));
+            }
+        }
+
+        int resultSize = stepCount / 8;
+
+        if (DspWorkspace.BIN_BUFFER_SIZE < (resultSize + 12)){
+            throw (new Exception("pcmData is too big"));
+        }
+        if (!(sampleRate == SAMPLE_RATE)){
+            throw (new Exception("invalid sample rate:" + sampleRate));
+        }else if (channels < 1 || channels > 2){
+            throw (new Exception("invalid channel count:" + channels));
+        }else if (!(bits == 16 || bits == 32)){
+            throw (new Exception("invalid bit count:" + bits));
+        }
+
+        int s = 26112;
+        if (sampleRate == SAMPLE_RATE){
+            s = 24064;
+        }
+
+        DspWorkspace ws = DspWorkspace.acquire();
+        try {
+            float[] re = null;
+            float[] im = null;
+            float fixedScale = 0;
+            if (fixedPoint && bits == 16){
+                fixedScale = _buildFixed(ws, window, start, stepCount, s);
+            }else if (zoomBin){
+                ZoomBin zoom = ws.zoomBin();
+                zoom.build(window, start, stepCount, s);
+                re = zoom.real();
+                im = zoom.imag();
+            }else{
+                re = ws.real(N_WAVE);
+                im = ws.imag(N_WAVE);
+                //虚部全为0，用实数FFT，im不需要清零
+                Arrays.fill(re,stepCount,N_WAVE,0);
+                for (int index = 0;index < stepCount;++index){
+                    re[index] = window.sample(start + index);
+                }
+
+                FFTPlan.get(LOG2_N_WAVE).forwardReal(re,im,parallelFFT);
+
+                System.arraycopy(re,s,re,0,4096);
+                System.arraycopy(im,s,im,0,4096);
+                Arrays.fill(re,4096,8192,0);
+                Arrays.fill(im,4096,8192,0);
+            }
+
+            int finalSize = resultSize + 12;
+            ByteBuffer binBuffer = ws.binBuffer;
+            binBuffer.clear();
+            binBuffer.limit(finalSize);
+            binBuffer.mark();
+            binBuffer.position(4);
+            if (re == null){
+                resultSize = compress(ws.fixedReal(0), fixedScale, binBuffer, resultSize);
+            }else{
+                FFTPlan.get(13).inverse(re,im);
+                resultSize = compress(re, binBuffer, resultSize);
+            }
+            if (resultSize > 65535){
+                throw (new Exception("too long bin"));
+            }
+            binBuffer.reset();
+            if (sampleRate == 44100){
+                binBuffer.put((byte) 1);
+            }else{
+                binBuffer.put((byte) 2);
+            }
+            binBuffer.put((byte) 1);
+            binBuffer.putShort((short) (resultSize & 0xffff));
+            byte[] result = new byte[finalSize];
+            System.arraycopy(binBuffer.array(),0,result,0,finalSize);
+            return result;
+        }finally {
+            DspWorkspace.release(ws);
+        }
+    }
+
+    /**
+     * 定点版本的compress，input[i] * scale 为对应的浮点值，量化只用整数运算
+     */
+    static int compress(int []input, float scale, ByteBuffer output, int numberOfSamples) {
+        int longer = 0;
+        for (int index = 0; index < numberOfSamples; ++index) {
+            int temp = input[index];
+            if (temp < 0)
+                temp = -temp;
+            if (temp > longer)
+                longer = temp;
+        }
+        float factor = longer * scale / 127;
+
+        try {
+            output.putFloat(0);
+            output.putFloat(factor * 2);
+
+            for (int index = 0; index < numberOfSamples; ++index) {
+                int result = (longer == 0) ? 0 : (int) ((long) input[index] * 127 / longer);
+                output.put((byte)(result));
+            }
+            return numberOfSamples + 8;
+        }catch (Exception e){
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    static int compress(float []input, ByteBuffer output, int numberOfSamples) {
+        float max = -99999999f, min = 99999999f;
+
+        for (int index = 0; index < numberOfSamples; ++index) {
+            float temp = input[index];
+            if (temp > max)
+                max = temp;
+            if (temp < min)
+                min = temp;
+        }
+        float average = 0;
+        float longer = Math.abs(max)>Math.abs(min)?Math.abs(max):Math.abs(min);
+        float factor = longer / 127;
+
+        try {
+            output.putFloat(average * 2);
+            output.putFloat(factor * 2);
+
+            for (int index = 0; index < numberOfSamples; ++index) {
+                float temp = input[index] - average;
+                int result = (int) (temp / factor);
+                if (result > 127)
+                    result = 127;
+                else if (result < -127)
+                    result = -127;
+                output.put((byte)(result));
+            }
+            return numberOfSamples + 8;
+        }catch (Exception e){
+            e.printStackTrace();
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.buyfull.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 比对引擎：结果总是用candidate的，同时按比例抽一部分窗口再用reference算一遍，记录两者的差别。
+ * 用来上线更快的引擎时发现数值上的偏差，比对的额外开销只在抽中的窗口上。
+ * 抽样是确定的：每次调用累加fraction，满1就比对一次。
+ */
+public class CrossCheckEngine implements DspEngine {
+    private static final int BIN_HEADER_SIZE = 12;  //BIN头：类型(1) + 版本(1) + 长度(2) + 平均值(4) + 缩放因子(4)
+    private static final int FACTOR_OFFSET = 8;
+
+    private final DspEngine     _candidate;
+    private final DspEngine     _reference;
+    private volatile float      _fraction;
+    private float               _binCredit;
+    private float               _dBCredit;
+
+    private long                _binCount;
+    private long                _binChecked;
+    private int                 _maxByteDelta;
+    private long                _bytesOverOne;
+    private long                _sizeMismatch;
+    private double              _maxFactorError;
+    private long                _dBCount;
+    private long                _dBChecked;
+    private double              _maxDBDelta;
+    private double              _sumDBDelta;
+    private long                _referenceErrors;
+
+    /**
+     * @param candidate 实际使用的引擎
+     * @param reference 比对的标准
+     * @param fraction  比对的比例，0 ~ 1
+     */
+    public CrossCheckEngine(DspEngine candidate, DspEngine reference, float fraction){
+        _candidate = candidate;
+        _reference = reference;
+        setFraction(fraction);
+    }
+
+    public DspEngine candidate(){
+        return _candidate;
+    }
+
+    public void setFraction(float fraction){
+        _fraction = Math.max(0, Math.min(1, fraction));
+    }
+
+    @Override
+    public String name() {
+        return _candidate.name();
+    }
+
+    @Override
+    public float getDB(byte[] pcmData, int pcmDataSize, int sampleRate, int channels, int bits, boolean isLastFrame) throws Exception {
+        if (pcmData == null){
+            throw (new Exception("invalid pcmData or outBin:"));
+        }
+        return getDB(PcmWindow.wrap(pcmData, pcmDataSize, channels, bits), sampleRate, isLastFrame);
+    }
+
+    @Override
+    public byte[] buildBin(byte[] pcmData, int sampleRate, int recordPeriodInMS, int channels, int bits) throws Exception {
+        if (pcmData == null){
+            throw (new Exception("invalid pcmData or outBin:"));
+        }
+        return buildBin(PcmWindow.wrap(pcmData, pcmData.length, channels, bits), sampleRate, recordPeriodInMS);
+    }
+
+    @Override
+    public float getDB(PcmWindow window, int sampleRate, boolean isLastFrame) throws Exception {
+        float dB = _candidate.getDB(window, sampleRate, isLastFrame);
+        boolean check;
+        synchronized (this){
+            ++_dBCount;
+            _dBCredit += _fraction;
+            check = _dBCredit >= 1;
+            if (check){
+                _dBCredit -= 1;
+            }
+        }
+        if (check){
+            try {
+                float referenceDB = _reference.getDB(window, sampleRate, isLastFrame);
+                double delta = Math.abs(dB - referenceDB);
+                synchronized (this){
+                    ++_dBChecked;
+                    _sumDBDelta += delta;
+                    if (delta > _maxDBDelta){
+                        _maxDBDelta = delta;
+                    }
+                }
+            }catch (Exception e){
+                synchronized (this){
+                    ++_referenceErrors;
+                }
+            }
+        }
+        return dB;
+    }
+
+    @Override
+    public byte[] buildBin(PcmWindow window, int sampleRate, int recordPeriodInMS) throws Exception {
+        byte[] bin = _candidate.buildBin(window, sampleRate, recordPeriodInMS);
+        boolean check;
+        synchronized (this){
+            ++_binCount;
+            _binCredit += _fraction;
+            check = _binCredit >= 1;
+            if (check){
+                _binCredit -= 1;
+            }
+        }
+        if (check){
+            try {
+                _compare(bin, _reference.buildBin(window, sampleRate, recordPeriodInMS));
+            }catch (Exception e){
+                synchronized (this){
+                    ++_referenceErrors;
+                }
+            }
+        }
+        return bin;
+    }
+
+    private synchronized void _compare(byte[] bin, byte[] referenceBin){
+        ++_binChecked;
+        if (bin.length != referenceBin.length || bin.length < BIN_HEADER_SIZE){
+            ++_sizeMismatch;
+            return;
+        }
+        for (int index = BIN_HEADER_SIZE; index < bin.length; ++index){
+            int delta = Math.abs(bin[index] - referenceBin[index]);
+            if (delta > _maxByteDelta){
+                _maxByteDelta = delta;
+            }
+            if (delta > 1){
+                ++_bytesOverOne;
+            }
+        }
+        float factor = ByteBuffer.wrap(bin).order(ByteOrder.LITTLE_ENDIAN).getFloat(FACTOR_OFFSET);
+        float referenceFactor = ByteBuffer.wrap(referenceBin).order(ByteOrder.LITTLE_ENDIAN).getFloat(FACTOR_OFFSET);
+        if (referenceFactor != 0){
+            double error = Math.abs(factor / referenceFactor - 1);
+            if (error > _maxFactorError){
+                _maxFactorError = error;
+            }
+        }else if (factor != 0){
+            _maxFactorError = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @return 当前统计的快照
+     */
+    public synchronized Stats getStats(){
+        Stats stats = new Stats();
+        stats.engine = _candidate.name();
+        stats.fraction = _fraction;
+        stats.binCount = _binCount;
+        stats.binChecked = _binChecked;
+        stats.maxByteDelta = _maxByteDelta;
+        stats.bytesOverOne = _bytesOverOne;
+        stats.sizeMismatch = _sizeMismatch;
+        stats.maxFactorError = _maxFactorError;
+        stats.dBCount = _dBCount;
+        stats.dBChecked = _dBChecked;
+        stats.maxDBDelta = _maxDBDelta;
+        stats.meanDBDelta = (_dBChecked > 0) ? _sumDBDelta / _dBChecked : 0;
+        stats.referenceErrors = _referenceErrors;
+        return stats;
+    }
+
+    public synchronized void resetStats(){
+        _binCount = _binChecked = _bytesOverOne = _sizeMismatch = 0;
+        _dBCount = _dBChecked = _referenceErrors = 0;
+        _maxByteDelta = 0;
+        _maxFactorError = _maxDBDelta = _sumDBDelta = 0;
+    }
+
+    /**
+     * 比对统计
+     */
+    public static class Stats{
+        public String   engine;
+        public float    fraction;
+        public long     binCount;       //buildBin调用次数
+        public long     binChecked;     //比对过的BIN个数
+        public int      maxByteDelta;   //压缩后数据（不含头）的最大差值
+        public long     bytesOverOne;   //差值大于1的字节数
+        public long     sizeMismatch;   //长度不同的BIN个数
+        public double   maxFactorError; //缩放因子的最大相对误差
+        public long     dBCount;        //getDB调用次数
+        public long     dBChecked;      //比对过的分贝个数
+        public double   maxDBDelta;     //分贝的最大差值
+        public double   meanDBDelta;    //分贝差值的平均值
+        public long     referenceErrors;//reference出错的次数
+
+        @Override
+        public String toString() {
+            return engine + " fraction:" + fraction
+                    + " bin:" + binChecked + "/" + binCount + " maxByteDelta:" + maxByteDelta + " bytesOverOne:" + bytesOverOne
+                    + " sizeMismatch:" + sizeMismatch + " maxFactorError:" + maxFactorError
+                    + " dB:" + dBChecked + "/" + dBCount + " maxDBDelta:" + maxDBDelta + " meanDBDelta:" + meanDBDelta
+                    + " referenceErrors:" + referenceErrors;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.buyfull.dsp;
+
+/**
+ * 计算分贝和BIN的引擎，不同的实现速度和内存不同，结果应当在误差范围内一致。
+ * 实现必须可以在多个线程中同时调用。
+ */
+public interface DspEngine {
+    /**
+     * @return 引擎名称，见DspEngines
+     */
+    String name();
+
+    /**
+     * 与BuyfullDsp.getDB相同
+     */
+    float getDB(byte[] pcmData, int pcmDataSize, int sampleRate, int channels, int bits, boolean isLastFrame) throws Exception;
+
+    /**
+     * 与BuyfullDsp.buildBin相同
+     */
+    byte[] buildBin(byte[] pcmData, int sampleRate, int recordPeriodInMS, int channels, int bits) throws Exception;
+
+    /**
+     * 与BuyfullDsp.getDB(PcmWindow, ...)相同
+     */
+    float getDB(PcmWindow window, int sampleRate, boolean isLastFrame) throws Exception;
+
+    /**
+     * 与BuyfullDsp.buildBin(PcmWindow, ...)相同
+     */
+    byte[] buildBin(PcmWindow window, int sampleRate, int recordPeriodInMS) throws Exception;
+}
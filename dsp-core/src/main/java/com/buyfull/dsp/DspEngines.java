@@ -0,0 +1,81 @@
+package com.buyfull.dsp;
+
+/**
+ * 现有的几种引擎：
+ * reference  原来的实现（实数65536点FFT），作为比对的标准
+ * zoom       窄带zoom FFT计算BIN，分贝与reference相同
+ * fixed      16bit输入时用定点运算计算分贝和BIN，32bit输入与reference相同
+ * parallel   多线程计算65536点FFT，结果与reference完全相同
+ */
+public final class DspEngines {
+    public static final String REFERENCE = "reference";
+    public static final String ZOOM = "zoom";
+    public static final String FIXED = "fixed";
+    public static final String PARALLEL = "parallel";
+
+    private static final DspEngine _reference = new Engine(REFERENCE, false, false, false);
+    private static final DspEngine _zoom = new Engine(ZOOM, true, false, false);
+    private static final DspEngine _fixed = new Engine(FIXED, false, true, false);
+    private static final DspEngine _parallel = new Engine(PARALLEL, false, false, true);
+
+    private DspEngines(){
+    }
+
+    public static DspEngine reference(){
+        return _reference;
+    }
+
+    /**
+     * @param name  引擎名称
+     * @return 对应的引擎，名称不认识时返回reference
+     */
+    public static DspEngine get(String name){
+        if (ZOOM.equals(name)){
+            return _zoom;
+        }else if (FIXED.equals(name)){
+            return _fixed;
+        }else if (PARALLEL.equals(name)){
+            return _parallel;
+        }
+        return _reference;
+    }
+
+    private static class Engine implements DspEngine{
+        private final String    _name;
+        private final boolean   _zoomBin;
+        private final boolean   _fixedPoint;
+        private final boolean   _parallelFFT;
+
+        Engine(String name, boolean zoomBin, boolean fixedPoint, boolean parallelFFT){
+            _name = name;
+            _zoomBin = zoomBin;
+            _fixedPoint = fixedPoint;
+            _parallelFFT = parallelFFT;
+        }
+
+        @Override
+        public String name() {
+            return _name;
+        }
+
+        @Override
+        public float getDB(byte[] pcmData, int pcmDataSize, int sampleRate, int channels, int bits, boolean isLastFrame) throws Exception {
+            return BuyfullDsp.getDB(pcmData, pcmDataSize, sampleRate, channels, bits, isLastFrame, _fixedPoint);
+        }
+
+        @Override
+        public byte[] buildBin(byte[] pcmData, int sampleRate, int recordPeriodInMS, int channels, int bits) throws Exception {
+            return BuyfullDsp.buildBin(pcmData, sampleRate, recordPeriodInMS, channels, bits, _zoomBin, _fixedPoint, _parallelFFT);
+        }
+
+        @Override
+        public float getDB(PcmWindow window, int sampleRate, boolean isLastFrame) throws Exception {
+            return BuyfullDsp.getDB(window, sampleRate, isLastFrame, _fixedPoint);
+        }
+
+        @Override
+        public byte[] buildBin(PcmWindow window, int sampleRate, int recordPeriodInMS) throws Exception {
+            return BuyfullDsp.buildBin(window, sampleRate, recordPeriodInMS, _zoomBin, _fixedPoint, _parallelFFT);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.buyfull.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * getDB和buildBin用的工作区，保存FFT的临时数组和输出BIN的缓冲区。
+ * 每次计算时acquire()一个，用完release()，不同线程各用各的工作区，可以同时计算。
+ * 数组按需分配，只算分贝的工作区不会分配64K的数组。
+ * 池里最多保留MAX_POOLED个，并发更多时临时创建，放回时池满就丢弃。
+ */
+final class DspWorkspace{
+    private static final int                    MAX_POOLED = 2;
+    static final int                            BIN_BUFFER_SIZE = 8 * 1024;
+    private static final DspWorkspace[]         _pool = new DspWorkspace[MAX_POOLED];
+    private static int                          _pooled = 0;
+
+    public final ByteBuffer     binBuffer = ByteBuffer.allocate(BIN_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private float[]             _real;
+    private float[]             _imag;
+    private int[]               _fixedReal;
+    private int[]               _fixedImag;
+    private ZoomBin             _zoomBin;
+
+    public synchronized static DspWorkspace acquire(){
+        if (_pooled > 0){
+            DspWorkspace ws = _pool[--_pooled];
+            _pool[_pooled] = null;
+            return ws;
+        }
+        return new DspWorkspace();
+    }
+
+    public synchronized static void release(DspWorkspace ws){
+        if (ws != null && _pooled < MAX_POOLED){
+            _pool[_pooled++] = ws;
+        }
+    }
+
+    public float[] real(int size){
+        if (_real == null || _real.length < size){
+            _real = new float[size];
+        }
+        return _real;
+    }
+
+    public float[] imag(int size){
+        if (_imag == null || _imag.length < size){
+            _imag = new float[size];
+        }
+        return _imag;
+    }
+
+    public int[] fixedReal(int size){
+        if (_fixedReal == null || _fixedReal.length < size){
+            _fixedReal = new int[size];
+        }
+        return _fixedReal;
+    }
+
+    public int[] fixedImag(int size){
+        if (_fixedImag == null || _fixedImag.length < size){
+            _fixedImag = new int[size];
+        }
+        return _fixedImag;
+    }
+
+    public ZoomBin zoomBin(){
+        if (_zoomBin == null){
+            _zoomBin = new ZoomBin();
+        }
+        return _zoomBin;
+    }
+}
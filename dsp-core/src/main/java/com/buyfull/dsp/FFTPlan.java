@@ -0,0 +1,667 @@
+package com.buyfull.dsp;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.buyfull.dsp.BuyfullDsp.LOG2_N_WAVE;
+import static com.buyfull.dsp.BuyfullDsp.N_WAVE;
+import static com.buyfull.dsp.BuyfullDsp.fsin;
+
+/**
+ * FFT计划，每种长度只创建一次，之后可以在多个线程中重复使用。
+ * 预先算好位反转要交换的下标对、每一级连续存放的旋转因子（正向的0.5缩放已乘进去）、
+ * 实数FFT拆分用的旋转因子和汉宁窗系数，计算结果与原来逐次查fsin表的实现完全一致。
+ */
+public final class FFTPlan{
+    //创建后不再改变，读的时候不加锁
+    private static final AtomicReferenceArray<FFTPlan> plans = new AtomicReferenceArray<FFTPlan>(LOG2_N_WAVE + 1);
+    private static final int        Q15 = 1 << 15;
+    private static final int        PARALLEL_MIN_SIZE = 8192;  //小于这个长度时分线程的开销比节省的多
+    private static final int        PARALLEL_MAX_PARTS = 4;
+    private static ExecutorService  _pool;
+    private static int              _parts;
+
+    private interface ParallelTask{
+        void run(int part);
+    }
+
+    /**
+     * 并行的份数，取不超过核数和PARALLEL_MAX_PARTS的2的幂，第一次调用时创建parts-1个后台线程
+     */
+    private synchronized static int _parallelParts(){
+        if (_parts == 0){
+            int cores = Runtime.getRuntime().availableProcessors();
+            int parts = 1;
+            while (parts * 2 <= cores && parts * 2 <= PARALLEL_MAX_PARTS){
+                parts *= 2;
+            }
+            if (parts > 1){
+                _pool = Executors.newFixedThreadPool(parts - 1, new ThreadFactory() {
+                    private int count = 0;
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BuyfullFFT" + (++count));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            _parts = parts;
+        }
+        return _parts;
+    }
+
+    /**
+     * 把task的1..parts-1交给线程池，0在当前线程执行，全部完成后返回
+     */
+    private static void _runParallel(int parts, final ParallelTask task){
+        final CountDownLatch latch = new CountDownLatch(parts - 1);
+        for (int i = 1; i < parts; ++i){
+            final int part = i;
+            _pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(part);
+                    }finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        task.run(0);
+        boolean interrupted = false;
+        while (true){
+            try {
+                latch.await();
+                break;
+            }catch (InterruptedException e){
+                //FFT必须等所有线程都完成，不能提前返回，返回前再恢复中断状态
+                interrupted = true;
+            }
+        }
+        if (interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public final int    n;
+    public final int    log2n;
+    //每组表在加锁后算好，最后写volatile的那一个（_twr、_splitR、_window、_qtwr），之后读的时候只检查它，不加锁
+    private int[]               _swaps;     //位反转交换对：[a0,b0,a1,b1...]
+    private volatile float[]    _twr;       //第s级(l = 2^s)的正向旋转因子在[l-1, 2l-1)
+    private float[]             _twi;
+    private volatile float[]    _splitR;    //实数FFT拆分用的W^k，k = 0..n/4
+    private float[]             _splitI;
+    private volatile float[]    _window;    //汉宁窗
+    private volatile int[]      _qtwr;      //定点用的Q15旋转因子，排列与_twr相同，但没有乘0.5
+    private int[]               _qtwi;
+    private int[]               _qsplitR;   //定点用的Q15拆分旋转因子
+    private int[]               _qsplitI;
+    private int[]               _qwindow;   //定点用的Q15汉宁窗
+
+    public static FFTPlan get(int m){
+        if (m < 1 || m > LOG2_N_WAVE)
+            return null;
+        FFTPlan plan = plans.get(m);
+        if (plan == null){
+            //两个线程同时创建时用先放进去的那个
+            plans.compareAndSet(m, null, new FFTPlan(m));
+            plan = plans.get(m);
+        }
+        return plan;
+    }
+
+    private FFTPlan(int m){
+        log2n = m;
+        n = 1 << m;
+    }
+
+    /**
+     * 提前算好正向实数FFT要用的表（包括n/2点复数FFT的表），withWindow时加上汉宁窗
+     */
+    void prepareReal(boolean withWindow){
+        _initReal();
+        if (withWindow){
+            _initWindow();
+        }
+        get(log2n - 1)._initComplex();
+    }
+
+    /**
+     * 提前算好复数FFT要用的表
+     */
+    void prepareComplex(){
+        _initComplex();
+    }
+
+    private void _initComplex(){
+        if (_twr == null){
+            _buildComplex();
+        }
+    }
+
+    private synchronized void _buildComplex(){
+        if (_twr != null)
+            return;
+
+        int nn = n - 1;
+        int count = 0;
+        int[] swaps = new int[n];
+        for (int i = 1, mr = 0; i <= nn; ++i){
+            int l = n;
+            do {
+                l >>= 1;
+            } while (mr + l > nn);
+            mr = (mr & (l - 1)) + l;
+            if (mr <= i) continue;
+            swaps[count++] = i;
+            swaps[count++] = mr;
+        }
+        _swaps = Arrays.copyOf(swaps, count);
+
+        float[] twr = new float[n];
+        float[] twi = new float[n];
+        for (int l = 1, k = LOG2_N_WAVE - 1; l < n; l <<= 1, --k){
+            for (int q = 0; q < l; ++q){
+                int j = q << k;
+                twr[l - 1 + q] =  fsin[j + N_WAVE / 4] * 0.5f;
+                twi[l - 1 + q] = -fsin[j] * 0.5f;
+            }
+        }
+        _twi = twi;
+        _twr = twr;
+    }
+
+    private void _initReal(){
+        if (_splitR == null){
+            _buildReal();
+        }
+    }
+
+    private synchronized void _buildReal(){
+        if (_splitR != null)
+            return;
+
+        int count = n / 4 + 1;
+        int step = N_WAVE / n;
+        float[] splitR = new float[count];
+        float[] splitI = new float[count];
+        for (int k = 0; k < count; ++k){
+            splitR[k] =  fsin[k * step + N_WAVE / 4];
+            splitI[k] = -fsin[k * step];
+        }
+        _splitI = splitI;
+        _splitR = splitR;
+    }
+
+    private void _initWindow(){
+        if (_window == null){
+            _buildWindow();
+        }
+    }
+
+    private synchronized void _buildWindow(){
+        if (_window != null)
+            return;
+
+        float[] window = new float[n];
+        int step = N_WAVE / n;
+        for (int i = 0, k = N_WAVE / 4; i < n; ++i, k += step){
+            window[i] = 0.5f - 0.5f * fsin[k % N_WAVE];
+        }
+        _window = window;
+    }
+
+    private void _bitReverse(float[] fr, float[] fi){
+        _bitReverse(fr, fi, 0, _swaps.length);
+    }
+
+    /**
+     * 只做_swaps[from, to)这些交换，各段之间互不相关，可以分给多个线程
+     */
+    private void _bitReverse(float[] fr, float[] fi, int from, int to){
+        int[] swaps = _swaps;
+        for (int i = from; i < to; i += 2){
+            int a = swaps[i];
+            int b = swaps[i + 1];
+            float t = fr[a];
+            fr[a] = fr[b];
+            fr[b] = t;
+            t = fi[a];
+            fi[a] = fi[b];
+            fi[b] = t;
+        }
+    }
+
+    /**
+     * 正向FFT：X[k] = (1/n)·Σ x[j]·e^(-2πijk/n)，每一级蝶形乘0.5，结果按1/n缩放
+     */
+    public void forward(float[] fr, float[] fi){
+        _initComplex();
+        _bitReverse(fr, fi, 0, _swaps.length);
+        _forwardStages(fr, fi, 0, n, n);
+    }
+
+    /**
+     * 多线程正向FFT，结果与forward()完全相同（每个蝶形的运算和顺序都不变）。
+     * 位反转后，前面的级只在长度为n/parts的块内做蝶形，每个线程算一块；
+     * 最后log2(parts)级每一级按q分给各个线程，每一级之间同步一次。
+     * n小于PARALLEL_MIN_SIZE或者只有一个核时直接调用forward()。
+     */
+    public void forwardParallel(final float[] fr, final float[] fi){
+        final int parts = _parallelParts();
+        if (n < PARALLEL_MIN_SIZE || parts < 2){
+            forward(fr, fi);
+            return;
+        }
+        _initComplex();
+        final int pairCount = _swaps.length / 2;
+        _runParallel(parts, new ParallelTask() {
+            @Override
+            public void run(int part) {
+                _bitReverse(fr, fi, 2 * (pairCount * part / parts), 2 * (pairCount * (part + 1) / parts));
+            }
+        });
+        final int block = n / parts;
+        _runParallel(parts, new ParallelTask() {
+            @Override
+            public void run(int part) {
+                _forwardStages(fr, fi, part * block, (part + 1) * block, block);
+            }
+        });
+        for (int l = block; l < n; l <<= 1){
+            final int stage = l;
+            _runParallel(parts, new ParallelTask() {
+                @Override
+                public void run(int part) {
+                    _forwardStage(fr, fi, stage, stage * part / parts, stage * (part + 1) / parts);
+                }
+            });
+        }
+    }
+
+    /**
+     * 对[from, to)这一块做l = 1..maxL/2的各级蝶形
+     */
+    private void _forwardStages(float[] fr, float[] fi, int from, int to, int maxL){
+        float[] twr = _twr;
+        float[] twi = _twi;
+        for (int l = 1; l < maxL; l <<= 1){
+            int istep = l << 1;
+            for (int i = from; i < to; i += istep){
+                for (int q = 0, t = l - 1; q < l; ++q, ++t){
+                    float wr = twr[t];
+                    float wi = twi[t];
+                    int a = i + q;
+                    int b = a + l;
+                    float tr = wr * fr[b] - wi * fi[b];
+                    float ti = wr * fi[b] + wi * fr[b];
+                    float qr = fr[a] * 0.5f;
+                    float qi = fi[a] * 0.5f;
+                    fr[b] = qr - tr;
+                    fi[b] = qi - ti;
+                    fr[a] = qr + tr;
+                    fi[a] = qi + ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * 第l级中q在[qFrom, qTo)的蝶形
+     */
+    private void _forwardStage(float[] fr, float[] fi, int l, int qFrom, int qTo){
+        float[] twr = _twr;
+        float[] twi = _twi;
+        int istep = l << 1;
+        for (int i = 0; i < n; i += istep){
+            for (int q = qFrom, t = l - 1 + qFrom; q < qTo; ++q, ++t){
+                float wr = twr[t];
+                float wi = twi[t];
+                int a = i + q;
+                int b = a + l;
+                float tr = wr * fr[b] - wi * fi[b];
+                float ti = wr * fi[b] + wi * fr[b];
+                float qr = fr[a] * 0.5f;
+                float qi = fi[a] * 0.5f;
+                fr[b] = qr - tr;
+                fi[b] = qi - ti;
+                fr[a] = qr + tr;
+                fi[a] = qi + ti;
+            }
+        }
+    }
+
+    /**
+     * 逆向FFT：x[j] = Σ X[k]·e^(+2πijk/n)，不缩放，forward()之后再inverse()得到原来的序列
+     */
+    public void inverse(float[] fr, float[] fi){
+        _initComplex();
+        _bitReverse(fr, fi);
+
+        float[] twr = _twr;
+        float[] twi = _twi;
+        for (int l = 1; l < n; l <<= 1){
+            int istep = l << 1;
+            for (int i = 0; i < n; i += istep){
+                for (int q = 0, t = l - 1; q < l; ++q, ++t){
+                    float wr =  twr[t] * 2;
+                    float wi = -twi[t] * 2;
+                    int a = i + q;
+                    int b = a + l;
+                    float tr = wr * fr[b] - wi * fi[b];
+                    float ti = wr * fi[b] + wi * fr[b];
+                    float qr = fr[a];
+                    float qi = fi[a];
+                    fr[b] = qr - tr;
+                    fi[b] = qi - ti;
+                    fr[a] = qr + tr;
+                    fi[a] = qi + ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * 实数输入的正向FFT，结果与forward()相同（同样按1/n缩放），计算量约为一半。
+     * 把n个实数打包成n/2点复数（偶数点为实部，奇数点为虚部）做FFT，再拆分出实数序列的频谱。
+     * 只输出0..n/2的频点，n/2以上的频点与之共轭对称，不会写入。
+     * @param fr    输入n个实数，输出频谱实部
+     * @param fi    输出频谱虚部，输入内容会被忽略
+     */
+    public void forwardReal(float[] fr, float[] fi){
+        forwardReal(fr, fi, false);
+    }
+
+    /**
+     * @param parallel  半长的复数FFT是否用forwardParallel()
+     */
+    public void forwardReal(float[] fr, float[] fi, boolean parallel){
+        _initReal();
+        int half = n >> 1;
+        for (int i = 0; i < half; ++i){
+            fi[i] = fr[2 * i + 1];
+            fr[i] = fr[2 * i];
+        }
+        if (parallel){
+            get(log2n - 1).forwardParallel(fr, fi);
+        }else{
+            get(log2n - 1).forward(fr, fi);
+        }
+
+        float[] splitR = _splitR;
+        float[] splitI = _splitI;
+        //Z[n/2] = Z[0]
+        fr[half] = fr[0];
+        fi[half] = fi[0];
+        for (int k = 0; k <= half / 2; ++k){
+            int k2 = half - k;
+            float zr = fr[k], zi = fi[k];
+            float cr = fr[k2], ci = fi[k2];
+            //偶数点频谱 E = (Z[k] + conj(Z[n/2-k])) / 2，奇数点频谱 O = (Z[k] - conj(Z[n/2-k])) / 2i
+            float er = (zr + cr) * 0.5f;
+            float ei = (zi - ci) * 0.5f;
+            float or = (zi + ci) * 0.5f;
+            float oi = (cr - zr) * 0.5f;
+            float wr = splitR[k];
+            float wi = splitI[k];
+            float tr = wr * or - wi * oi;
+            float ti = wr * oi + wi * or;
+            //X[k] = E + W^k * O, X[n/2-k] = conj(E - W^k * O)，半长FFT只缩放了1/(n/2)，再乘0.5
+            fr[k2] = (er - tr) * 0.5f;
+            fi[k2] = (ti - ei) * 0.5f;
+            fr[k] = (er + tr) * 0.5f;
+            fi[k] = (ei + ti) * 0.5f;
+        }
+    }
+
+    /**
+     * 带内幅度：对n个实数加汉宁窗后，只计算频谱中[from, from + count)这些频点的幅度之和，
+     * 用于getDB。加窗的同时打包成n/2点复数做FFT，然后只拆分需要的频点，
+     * 不再做完整的n点FFT，计算量不到原来的一半。
+     * 与 window() + forward() 后逐点求幅度再相加的结果只差float舍入误差，
+     * 换算成分贝后一般相差小于0.001dB，带外信号比带内强90dB左右时也在0.01dB以内。
+     * 84个频点的开方相对FFT可以忽略，为了结果一致仍然逐点开方。
+     * @param fr    输入n个实数，会被改写
+     * @param fi    工作区，输入内容会被忽略
+     * @param from  起始频点，from + count <= n/2
+     * @param count 频点个数
+     * @return 幅度之和
+     */
+    public double bandMagnitude(float[] fr, float[] fi, int from, int count){
+        _initReal();
+        _initWindow();
+        int half = n >> 1;
+        if (from < 0 || from + count > half)
+            return 0;
+
+        float[] window = _window;
+        for (int i = 0; i < half; ++i){
+            fi[i] = fr[2 * i + 1] * window[2 * i + 1];
+            fr[i] = fr[2 * i] * window[2 * i];
+        }
+        get(log2n - 1).forward(fr, fi);
+
+        float[] splitR = _splitR;
+        float[] splitI = _splitI;
+        double sum = 0;
+        for (int k = from; k < from + count; ++k){
+            int k2 = half - k;
+            int c = (k2 == half) ? 0 : k2;
+            float zr = fr[k], zi = fi[k];
+            float cr = fr[c], ci = fi[c];
+            float er = (zr + cr) * 0.5f;
+            float ei = (zi - ci) * 0.5f;
+            float or = (zi + ci) * 0.5f;
+            float oi = (cr - zr) * 0.5f;
+            //W^k只存了k <= n/4，k > n/4时 W^k = -conj(W^(n/2-k))
+            float wr, wi;
+            if (k <= n / 4){
+                wr = splitR[k];
+                wi = splitI[k];
+            }else{
+                wr = -splitR[k2];
+                wi = splitI[k2];
+            }
+            double xr = (er + wr * or - wi * oi) * 0.5f;
+            double xi = (ei + wr * oi + wi * or) * 0.5f;
+            sum += Math.sqrt(xr * xr + xi * xi);
+        }
+        return sum;
+    }
+
+    /**
+     * 对前n个点加汉宁窗
+     */
+    public void window(float[] fr){
+        _initWindow();
+        float[] window = _window;
+        for (int i = 0; i < n; ++i){
+            fr[i] *= window[i];
+        }
+    }
+
+    private void _initFixed(){
+        if (_qtwr == null){
+            _buildFixed();
+        }
+    }
+
+    private synchronized void _buildFixed(){
+        if (_qtwr != null)
+            return;
+
+        int[] qtwr = new int[n];
+        int[] qtwi = new int[n];
+        for (int l = 1, k = LOG2_N_WAVE - 1; l < n; l <<= 1, --k){
+            for (int q = 0; q < l; ++q){
+                int j = q << k;
+                qtwr[l - 1 + q] =  Math.round(fsin[j + N_WAVE / 4] * Q15);
+                qtwi[l - 1 + q] = -Math.round(fsin[j] * Q15);
+            }
+        }
+
+        int count = n / 4 + 1;
+        int step = N_WAVE / n;
+        int[] splitR = new int[count];
+        int[] splitI = new int[count];
+        for (int k = 0; k < count; ++k){
+            splitR[k] =  Math.round(fsin[k * step + N_WAVE / 4] * Q15);
+            splitI[k] = -Math.round(fsin[k * step] * Q15);
+        }
+
+        int[] window = new int[n];
+        for (int i = 0, k = N_WAVE / 4; i < n; ++i, k += step){
+            window[i] = Math.round((0.5f - 0.5f * fsin[k % N_WAVE]) * Q15);
+        }
+
+        _qsplitR = splitR;
+        _qsplitI = splitI;
+        _qwindow = window;
+        _qtwi = qtwi;
+        _qtwr = qtwr;
+    }
+
+    private void _bitReverse(int[] fr, int[] fi){
+        int[] swaps = _swaps;
+        for (int i = 0; i < swaps.length; i += 2){
+            int a = swaps[i];
+            int b = swaps[i + 1];
+            int t = fr[a];
+            fr[a] = fr[b];
+            fr[b] = t;
+            t = fi[a];
+            fi[a] = fi[b];
+            fi[b] = t;
+        }
+    }
+
+    /**
+     * 定点正向FFT，每一级右移1位，结果与forward()一样按1/n缩放。
+     * 输入每个点的分量要小于2^30，每一级输出的模都不会超过输入的最大模，不会溢出。
+     */
+    public void forwardFixed(int[] fr, int[] fi){
+        _transformFixed(fr, fi, false);
+    }
+
+    /**
+     * 定点逆向FFT，每一级同样右移1位，结果是inverse()的1/n。
+     */
+    public void inverseFixed(int[] fr, int[] fi){
+        _transformFixed(fr, fi, true);
+    }
+
+    private void _transformFixed(int[] fr, int[] fi, boolean inverse){
+        _initComplex();
+        _initFixed();
+        _bitReverse(fr, fi);
+
+        int[] twr = _qtwr;
+        int[] twi = _qtwi;
+        int sign = inverse ? -1 : 1;
+        for (int l = 1; l < n; l <<= 1){
+            int istep = l << 1;
+            for (int i = 0; i < n; i += istep){
+                for (int q = 0, t = l - 1; q < l; ++q, ++t){
+                    long wr = twr[t];
+                    long wi = twi[t] * sign;
+                    int a = i + q;
+                    int b = a + l;
+                    //Q15乘法再多右移1位，即乘0.5，四舍五入
+                    int tr = (int) ((wr * fr[b] - wi * fi[b] + Q15) >> 16);
+                    int ti = (int) ((wr * fi[b] + wi * fr[b] + Q15) >> 16);
+                    int qr = fr[a] >> 1;
+                    int qi = fi[a] >> 1;
+                    fr[b] = qr - tr;
+                    fi[b] = qi - ti;
+                    fr[a] = qr + tr;
+                    fi[a] = qi + ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * 定点实数正向FFT，与forwardReal()相同，只是输入已经打包好：
+     * fr[i]为第2i个点，fi[i]为第2i+1个点，共n/2个复数点。
+     * 输出0..n/2的频点，数组长度至少为n/2+1。
+     */
+    public void forwardRealFixed(int[] fr, int[] fi){
+        _initFixed();
+        int half = n >> 1;
+        get(log2n - 1).forwardFixed(fr, fi);
+
+        int[] splitR = _qsplitR;
+        int[] splitI = _qsplitI;
+        fr[half] = fr[0];
+        fi[half] = fi[0];
+        for (int k = 0; k <= half / 2; ++k){
+            int k2 = half - k;
+            //两个接近2^30的数相加会溢出，拆分用long
+            long zr = fr[k], zi = fi[k];
+            long cr = fr[k2], ci = fi[k2];
+            long er = zr + cr;
+            long ei = zi - ci;
+            long or = zi + ci;
+            long oi = cr - zr;
+            long wr = splitR[k];
+            long wi = splitI[k];
+            long tr = (wr * or - wi * oi + Q15) >> 15;
+            long ti = (wr * oi + wi * or + Q15) >> 15;
+            //E、O都还是2倍，再乘0.5，一共右移2位
+            fr[k2] = (int) ((er - tr + 2) >> 2);
+            fi[k2] = (int) ((ti - ei + 2) >> 2);
+            fr[k] = (int) ((er + tr + 2) >> 2);
+            fi[k] = (int) ((ei + ti + 2) >> 2);
+        }
+    }
+
+    /**
+     * 定点带内幅度，与bandMagnitude()相同，输入同forwardRealFixed()的打包格式，
+     * 加窗在这里做，结果的单位与输入的整数相同。
+     */
+    public double bandMagnitudeFixed(int[] fr, int[] fi, int from, int count){
+        _initFixed();
+        int half = n >> 1;
+        if (from < 0 || from + count > half)
+            return 0;
+
+        int[] window = _qwindow;
+        for (int i = 0; i < half; ++i){
+            fr[i] = (int) (((long) fr[i] * window[2 * i] + Q15 / 2) >> 15);
+            fi[i] = (int) (((long) fi[i] * window[2 * i + 1] + Q15 / 2) >> 15);
+        }
+        get(log2n - 1).forwardFixed(fr, fi);
+
+        int[] splitR = _qsplitR;
+        int[] splitI = _qsplitI;
+        double sum = 0;
+        for (int k = from; k < from + count; ++k){
+            int k2 = half - k;
+            int c = (k2 == half) ? 0 : k2;
+            long zr = fr[k], zi = fi[k];
+            long cr = fr[c], ci = fi[c];
+            long er = zr + cr;
+            long ei = zi - ci;
+            long or = zi + ci;
+            long oi = cr - zr;
+            long wr, wi;
+            if (k <= n / 4){
+                wr = splitR[k];
+                wi = splitI[k];
+            }else{
+                wr = -splitR[k2];
+                wi = splitI[k2];
+            }
+            double xr = (er + ((wr * or - wi * oi) >> 15)) * 0.25;
+            double xi = (ei + ((wr * oi + wi * or) >> 15)) * 0.25;
+            sum += Math.sqrt(xr * xr + xi * xi);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,98 @@
+package com.buyfull.dsp;
+
+/**
+ * 一段PCM数据的只读视图，getDB和buildBin直接从这里读采样，不需要先复制成连续的byte[]。
+ * 可以包装一段小端的byte[]（16bit或32bit float），也可以是16bit环形缓冲区中的一段（可以跨过缓冲区结尾）。
+ * 帧下标从窗口开头算起，多声道时只取第一个声道。
+ */
+public final class PcmWindow {
+    final byte[]    bytes;      //线性数据，环形缓冲区时为null
+    final short[]   shorts;     //环形缓冲区，线性数据时为null
+    final int       mask;       //环形缓冲区长度-1
+    final int       offset;     //第一帧在bytes中的字节位置，或在shorts中的位置（已按mask取模）
+    final int       frames;
+    final int       channels;
+    final int       bits;
+    final int       frameSize;  //每帧在bytes中的字节数或在shorts中的采样数
+
+    private PcmWindow(byte[] bytes, short[] shorts, int mask, int offset, int frames, int channels, int bits){
+        this.bytes = bytes;
+        this.shorts = shorts;
+        this.mask = mask;
+        this.offset = offset;
+        this.frames = frames;
+        this.channels = channels;
+        this.bits = bits;
+        this.frameSize = (bytes != null) ? channels * (bits / 8) : channels;
+    }
+
+    /**
+     * 包装byte[]的前size个字节
+     * @param pcmData   小端PCM数据
+     * @param size      有效长度
+     * @param channels  1或2
+     * @param bits      16或32(float)
+     */
+    public static PcmWindow wrap(byte[] pcmData, int size, int channels, int bits){
+        int frameSize = channels * (bits / 8);
+        return new PcmWindow(pcmData, null, 0, 0, (frameSize > 0) ? size / frameSize : 0, channels, bits);
+    }
+
+    /**
+     * 16bit环形缓冲区中的一段
+     * @param ring      环形缓冲区，长度必须是2的幂
+     * @param start     第一帧第一个采样的位置，可以大于缓冲区长度（按长度取模）
+     * @param frames    帧数
+     * @param channels  1或2
+     */
+    public static PcmWindow ring(short[] ring, long start, int frames, int channels){
+        int length = ring.length;
+        if (length == 0 || (length & (length - 1)) != 0)
+            throw new IllegalArgumentException("ring size must be power of 2:" + length);
+        return new PcmWindow(null, ring, length - 1, (int)(start & (length - 1)), frames, channels, 16);
+    }
+
+    public int frames(){
+        return frames;
+    }
+
+    public int channels(){
+        return channels;
+    }
+
+    public int bits(){
+        return bits;
+    }
+
+    /**
+     * 第frame帧的原始值，16bit时为整数值，32bit时为float值
+     */
+    float raw(int frame){
+        if (shorts != null)
+            return shorts[(offset + frame * frameSize) & mask];
+        int index = offset + frame * frameSize;
+        if (bits == 16)
+            return (short) ((bytes[index] & 0xff) | (bytes[index + 1] << 8));
+        return Float.intBitsToFloat((bytes[index] & 0xff) | ((bytes[index + 1] & 0xff) << 8)
+                | ((bytes[index + 2] & 0xff) << 16) | (bytes[index + 3] << 24));
+    }
+
+    /**
+     * 第frame帧的16bit整数值，只用于16bit数据
+     */
+    int sample16(int frame){
+        if (shorts != null)
+            return shorts[(offset + frame * frameSize) & mask];
+        int index = offset + frame * frameSize;
+        return (short) ((bytes[index] & 0xff) | (bytes[index + 1] << 8));
+    }
+
+    /**
+     * 第frame帧归一化到[-1, 1)的值，与原来用ByteBuffer读出后除以32768的结果相同
+     */
+    float sample(int frame){
+        if (bits == 16)
+            return (float)(sample16(frame) / 32768.0);
+        return raw(frame);
+    }
+}
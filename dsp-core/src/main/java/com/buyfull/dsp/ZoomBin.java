@@ -0,0 +1,228 @@
+package com.buyfull.dsp;
+
+import java.util.Arrays;
+
+import static com.buyfull.dsp.BuyfullDsp.N_WAVE;
+import static com.buyfull.dsp.BuyfullDsp.fsin;
+
+/**
+ * 窄带BIN计算（zoom FFT），可以代替buildBin中的65536点FFT。
+ * 把要保留的4096个频点的中心混频到零频，经过三级半带滤波器降采样8倍（48k -> 6k），
+ * 只对降采样后的信号做8192点FFT，直接得到buildBin中X[s..s+4096)对应的频点，
+ * 之后的8192点逆FFT和压缩与原来相同。
+ * 混频和第一级滤波合在一起：把第一级的系数调制到频带中心，直接对实数输入滤波，只在输出点旋转相位。
+ * 工作区约26.5K个复数点（约210KB），原来的方法需要64K个复数点（512KB）。
+ * 与原来的方法相比，保留频带内的误差来自滤波器的通带纹波和阻带泄露（约-80dB），
+ * 压缩后的BIN一般相差不超过1个量化单位，频带附近（上下3kHz内）有很强的带外信号时会大一些。
+ */
+final class ZoomBin{
+    private static final int    BAND_BINS = 4096;
+    private static final int    LOG2_OUT_SIZE = 13;
+    private static final int    OUT_SIZE = 1 << LOG2_OUT_SIZE;  //降采样后的FFT长度 = N_WAVE / 8
+    private static final int    K1 = 7;     //第一级半带滤波器半长，48k -> 24k
+    private static final int    K2 = 7;     //第二级，24k -> 12k
+    private static final int    K3 = 11;    //第三级，12k -> 6k，通带±1500Hz，4500Hz以上为阻带
+    private static final int    P3 = (K1 + 2 * K2 + 4 * K3 + 7) / 8;   //输出两端额外计算的点数
+    private static final int    P2 = 2 * P3 + K3;
+    private static final int    P1 = 2 * P2 + K2;
+
+    private static final float[] h1 = _halfband(K1, 6.0);
+    private static final float[] h2 = _halfband(K2, 6.0);
+    private static final float[] h3 = _halfband(K3, 7.0);
+
+    private float[]             _re;
+    private float[]             _im;
+    private final float[]       _g1r = new float[(K1 + 1) / 2];
+    private final float[]       _g1i = new float[(K1 + 1) / 2];
+    private int                 _g1Center = -1;
+
+    /**
+     * Kaiser窗半带滤波器，只返回奇数位置的系数h[1],h[3]...h[k]，中心系数h[0]为0.5，偶数位置为0
+     */
+    private static float[] _halfband(int k, double beta){
+        int count = (k + 1) / 2;
+        double[] h = new double[count];
+        double sum = 0.5;
+        for (int i = 0; i < count; ++i){
+            int j = 2 * i + 1;
+            double r = (double) j / (k + 1);
+            double sinc = Math.sin(Math.PI * j / 2) / (Math.PI * j / 2);
+            h[i] = 0.5 * sinc * _bessel0(beta * Math.sqrt(1 - r * r)) / _bessel0(beta);
+            sum += 2 * h[i];
+        }
+        float[] result = new float[count + 1];
+        result[0] = (float) (0.5 / sum);
+        for (int i = 0; i < count; ++i){
+            result[i + 1] = (float) (h[i] / sum);
+        }
+        return result;
+    }
+
+    private static double _bessel0(double x){
+        double sum = 1, term = 1;
+        for (int k = 1; k < 30; ++k){
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+        }
+        return sum;
+    }
+
+    public float[] real(){
+        return _re;
+    }
+
+    public float[] imag(){
+        return _im;
+    }
+
+    /**
+     * 计算X[s..s+4096)，结果放在real()/imag()的[0, 4096)中，[4096, 8192)清零，与buildBin中逆FFT前的数据对应
+     * @param window        PCM数据
+     * @param start         第一个采样点在窗口中的帧位置
+     * @param stepCount     采样点数
+     * @param s             65536点频谱中保留的起始频点
+     */
+    public void build(PcmWindow window, int start, int stepCount, int s) throws Exception{
+        int aCount = (stepCount + 1) / 2 + 2 * P1;
+        int bCount = (stepCount + 3) / 4 + 2 * P2;
+        int cCount = (stepCount + 7) / 8 + 2 * P3;
+        int cBase = bCount;
+        int size = Math.max(aCount, cBase + OUT_SIZE);
+        if (cCount > OUT_SIZE){
+            throw (new Exception("pcm data too long for zoom bin:" + stepCount));
+        }
+        if (_re == null || _re.length < size){
+            _re = new float[size];
+            _im = new float[size];
+        }
+        float[] re = _re;
+        float[] im = _im;
+
+        //第一级：混频到频带中心c，同时滤波并降采样到24k
+        int c = s + BAND_BINS / 2;
+        _prepareStage1(c);
+        float scale = (window.bits == 16) ? (1.0f / 32768) : 1.0f;
+        byte[] pcm = window.bytes;
+        short[] ring = window.shorts;
+        int mask = window.mask;
+        float[] g1r = _g1r;
+        float[] g1i = _g1i;
+        float center = h1[0];
+        int phaseStep = (2 * c) & (N_WAVE - 1);
+        int phase = (int) (((long) c * (-2 * P1)) & (N_WAVE - 1));
+        boolean fast = (window.bits == 16 && window.channels == 1);
+        for (int a = 0; a < aCount; ++a, phase = (phase + phaseStep) & (N_WAVE - 1)){
+            int t = 2 * (a - P1);
+            float accR;
+            float accI = 0;
+            if (fast && ring != null && t - K1 >= 0 && t + K1 < stepCount){
+                //单声道16bit环形缓冲区，中间部分不需要检查边界
+                int index = window.offset + start + t;
+                accR = center * ring[index & mask];
+                for (int i = 0; i < g1r.length; ++i){
+                    int offset = 2 * i + 1;
+                    float xa = ring[(index - offset) & mask];
+                    float xb = ring[(index + offset) & mask];
+                    accR += g1r[i] * (xa + xb);
+                    accI += g1i[i] * (xa - xb);
+                }
+            }else if (fast && t - K1 >= 0 && t + K1 < stepCount){
+                //单声道16bit，中间部分不需要检查边界
+                int index = window.offset + 2 * (start + t);
+                accR = center * (short) ((pcm[index] & 0xff) | (pcm[index + 1] << 8));
+                for (int i = 0; i < g1r.length; ++i){
+                    int offset = 4 * i + 2;
+                    float xa = (short) ((pcm[index - offset] & 0xff) | (pcm[index - offset + 1] << 8));
+                    float xb = (short) ((pcm[index + offset] & 0xff) | (pcm[index + offset + 1] << 8));
+                    accR += g1r[i] * (xa + xb);
+                    accI += g1i[i] * (xa - xb);
+                }
+            }else{
+                accR = center * _sample(window, start, stepCount, t);
+                for (int i = 0; i < g1r.length; ++i){
+                    int j = 2 * i + 1;
+                    float xa = _sample(window, start, stepCount, t - j);
+                    float xb = _sample(window, start, stepCount, t + j);
+                    accR += g1r[i] * (xa + xb);
+                    accI += g1i[i] * (xa - xb);
+                }
+            }
+            //乘以 e^(-i*2π*c*t/N_WAVE)
+            float wr =  fsin[(phase + N_WAVE / 4) & (N_WAVE - 1)] * scale;
+            float wi = -fsin[phase] * scale;
+            re[a] = accR * wr - accI * wi;
+            im[a] = accR * wi + accI * wr;
+        }
+
+        //第二级：24k -> 12k，原地写回，B[p]放在p + P2
+        _decimate(re, im, h2, P1 - 2 * P2, 0, bCount);
+        //第三级：12k -> 6k，C[n]按n mod 8192放在cBase之后
+        Arrays.fill(re, cBase, cBase + OUT_SIZE, 0);
+        Arrays.fill(im, cBase, cBase + OUT_SIZE, 0);
+        float[] taps = h3;
+        for (int b = 0; b < cCount; ++b){
+            int n = b - P3;
+            int in = 2 * n + P2;
+            float accR = taps[0] * re[in];
+            float accI = taps[0] * im[in];
+            for (int i = 1; i < taps.length; ++i){
+                int j = 2 * i - 1;
+                accR += taps[i] * (re[in - j] + re[in + j]);
+                accI += taps[i] * (im[in - j] + im[in + j]);
+            }
+            int out = cBase + (n & (OUT_SIZE - 1));
+            re[out] = accR;
+            im[out] = accI;
+        }
+        System.arraycopy(re, cBase, re, 0, OUT_SIZE);
+        System.arraycopy(im, cBase, im, 0, OUT_SIZE);
+
+        //降采样后的8192点FFT，同样按1/8192缩放，正好等于原65536点FFT的1/65536
+        FFTPlan.get(LOG2_OUT_SIZE).forward(re, im);
+
+        //频点[-2048, 2048)移到[0, 4096)
+        System.arraycopy(re, 0, re, BAND_BINS / 2, BAND_BINS / 2);
+        System.arraycopy(im, 0, im, BAND_BINS / 2, BAND_BINS / 2);
+        System.arraycopy(re, OUT_SIZE - BAND_BINS / 2, re, 0, BAND_BINS / 2);
+        System.arraycopy(im, OUT_SIZE - BAND_BINS / 2, im, 0, BAND_BINS / 2);
+        Arrays.fill(re, BAND_BINS, OUT_SIZE, 0);
+        Arrays.fill(im, BAND_BINS, OUT_SIZE, 0);
+    }
+
+    private void _prepareStage1(int c){
+        if (_g1Center == c)
+            return;
+        //g[j] = h[j] * e^(i*2π*c*j/N_WAVE)，g[-j]为g[j]的共轭
+        for (int i = 0; i < _g1r.length; ++i){
+            int j = 2 * i + 1;
+            int index = (c * j) & (N_WAVE - 1);
+            _g1r[i] = h1[i + 1] * fsin[(index + N_WAVE / 4) & (N_WAVE - 1)];
+            _g1i[i] = h1[i + 1] * fsin[index];
+        }
+        _g1Center = c;
+    }
+
+    /**
+     * 复数半带滤波并降采样2倍，out[o] = sum h[j] * in[2o + j]，输入下标为2o + inOffset，可以原地计算
+     */
+    private static void _decimate(float[] re, float[] im, float[] taps, int inOffset, int outOffset, int outCount){
+        for (int o = 0; o < outCount; ++o){
+            int in = 2 * o + inOffset;
+            float accR = taps[0] * re[in];
+            float accI = taps[0] * im[in];
+            for (int i = 1; i < taps.length; ++i){
+                int j = 2 * i - 1;
+                accR += taps[i] * (re[in - j] + re[in + j]);
+                accI += taps[i] * (im[in - j] + im[in + j]);
+            }
+            re[outOffset + o] = accR;
+            im[outOffset + o] = accI;
+        }
+    }
+
+    private static float _sample(PcmWindow window, int start, int stepCount, int t){
+        if (t < 0 || t >= stepCount)
+            return 0;
+        return window.raw(start + t);
+    }
+}
@@ -0,0 +1,135 @@
+package com.buyfull.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 各个引擎的getDB/buildBin与reference比对，容差按各引擎说明的精度，实测值写在各项的注释里
+ */
+public class DspEnginesTest {
+    private static final int BIN_FRAMES = BuyfullDsp.SAMPLE_RATE * BuyfullDsp.BIN_PERIOD / 1000;
+    private static final int DB_FROM = 768;     //getDB的带内频点
+    private static final int DB_COUNT = 84;
+    private static final int RING_SIZE = 128 * 1024;
+    private static final String[] ENGINES = {DspEngines.REFERENCE, DspEngines.ZOOM, DspEngines.FIXED, DspEngines.PARALLEL};
+
+    @Test
+    public void referenceGetDBMatchesDFT() throws Exception{
+        for (int bits = 16; bits <= 32; bits += 16){
+            byte[] pcm = TestSignals.pcm(BIN_FRAMES, bits);
+            PcmWindow window = PcmWindow.wrap(pcm, pcm.length, 1, bits);
+            for (int last = 0; last < 2; ++last){
+                boolean isLastFrame = last == 1;
+                float dB = DspEngines.reference().getDB(pcm, pcm.length, BuyfullDsp.SAMPLE_RATE, 1, bits, isLastFrame);
+                assertEquals("getDB bits=" + bits + " last=" + isLastFrame, _dftDB(window, isLastFrame), dB, 0.0023);
+            }
+        }
+    }
+
+    @Test
+    public void zoomBinMatchesReference() throws Exception{
+        for (int bits = 16; bits <= 32; bits += 16){
+            CrossCheckEngine.Stats stats = _compareBin(DspEngines.ZOOM, bits);
+            //窄带FFT的舍入与65536点FFT不同，压缩后最多差1，缩放因子相对误差约1e-4（这段录音为1.7e-4）
+            _assertBin(stats, 2e-4);
+        }
+    }
+
+    @Test
+    public void fixedPointMatchesReference() throws Exception{
+        //定点只支持16bit，压缩后最多差1，缩放因子相对误差约1e-5（这段录音为1.2e-5），getDB最多差0.007dB
+        CrossCheckEngine.Stats stats = _compareBin(DspEngines.FIXED, 16);
+        _assertBin(stats, 2e-5);
+
+        byte[] pcm = TestSignals.pcm(BIN_FRAMES, 16);
+        CrossCheckEngine check = new CrossCheckEngine(DspEngines.get(DspEngines.FIXED), DspEngines.reference(), 1);
+        check.getDB(pcm, pcm.length, BuyfullDsp.SAMPLE_RATE, 1, 16, true);
+        check.getDB(pcm, pcm.length, BuyfullDsp.SAMPLE_RATE, 1, 16, false);
+        stats = check.getStats();
+        assertEquals(stats.toString(), 2, stats.dBChecked);
+        assertTrue(stats.toString(), stats.maxDBDelta <= 0.007);
+    }
+
+    @Test
+    public void parallelIsBitIdentical() throws Exception{
+        //多线程FFT每个蝶形的运算和顺序都不变，BIN必须完全相同；单核时会直接用forward()
+        for (int bits = 16; bits <= 32; bits += 16){
+            byte[] pcm = TestSignals.pcm(BIN_FRAMES, bits);
+            byte[] bin = DspEngines.get(DspEngines.PARALLEL).buildBin(pcm, BuyfullDsp.SAMPLE_RATE, BuyfullDsp.BIN_PERIOD, 1, bits);
+            byte[] referenceBin = DspEngines.reference().buildBin(pcm, BuyfullDsp.SAMPLE_RATE, BuyfullDsp.BIN_PERIOD, 1, bits);
+            assertArrayEquals("parallel bits=" + bits, referenceBin, bin);
+        }
+    }
+
+    @Test
+    public void ringWindowMatchesBytes() throws Exception{
+        for (int channels = 1; channels <= 2; ++channels){
+            byte[] pcm = TestSignals.pcm(BIN_FRAMES, 16);
+            if (channels == 2){
+                pcm = TestSignals.stereo(pcm);
+            }
+            int samples = pcm.length / 2;
+            //窗口从缓冲区中间开始、跨过结尾、正好在结尾结束，start大于缓冲区长度时按长度取模
+            long[] starts = {RING_SIZE / 4, RING_SIZE - samples / 2, RING_SIZE - samples, 3L * RING_SIZE - samples / 3};
+            for (long start : starts){
+                PcmWindow window = PcmWindow.ring(TestSignals.ring(pcm, RING_SIZE, start), start, BIN_FRAMES, channels);
+                for (String name : ENGINES){
+                    String what = name + " channels=" + channels + " start=" + start;
+                    DspEngine engine = DspEngines.get(name);
+                    assertArrayEquals(what,
+                            engine.buildBin(pcm, BuyfullDsp.SAMPLE_RATE, BuyfullDsp.BIN_PERIOD, channels, 16),
+                            engine.buildBin(window, BuyfullDsp.SAMPLE_RATE, BuyfullDsp.BIN_PERIOD));
+                    for (int last = 0; last < 2; ++last){
+                        boolean isLastFrame = last == 1;
+                        //要求完全相同，delta为0
+                        assertEquals(what + " last=" + isLastFrame,
+                                engine.getDB(pcm, pcm.length, BuyfullDsp.SAMPLE_RATE, channels, 16, isLastFrame),
+                                engine.getDB(window, BuyfullDsp.SAMPLE_RATE, isLastFrame), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * getDB的定义：DB_FRAMES帧加汉宁窗，按1/n缩放的DFT在带内频点的平均幅度换算成分贝
+     */
+    private static double _dftDB(PcmWindow window, boolean isLastFrame){
+        int n = BuyfullDsp.DB_FRAMES;
+        int start = window.frames() - n - (isLastFrame ? 0 : BuyfullDsp.SAMPLE_RATE);
+        double[] xr = new double[n];
+        double[] xi = new double[n];
+        for (int i = 0; i < n; ++i){
+            xr[i] = window.sample(start + i) * (0.5 - 0.5 * Math.cos(2 * Math.PI * i / n));
+        }
+        double sum = 0;
+        for (int k = DB_FROM; k < DB_FROM + DB_COUNT; ++k){
+            double[] x = TestSignals.dft(xr, xi, k, -1);
+            sum += Math.hypot(x[0], x[1]) / n;
+        }
+        return BuyfullDsp.toDB(sum / DB_COUNT);
+    }
+
+    /**
+     * 用比例为1的CrossCheckEngine算一次buildBin，返回与reference的比对结果
+     */
+    private static CrossCheckEngine.Stats _compareBin(String engine, int bits) throws Exception{
+        byte[] pcm = TestSignals.pcm(BIN_FRAMES, bits);
+        CrossCheckEngine check = new CrossCheckEngine(DspEngines.get(engine), DspEngines.reference(), 1);
+        check.buildBin(pcm, BuyfullDsp.SAMPLE_RATE, BuyfullDsp.BIN_PERIOD, 1, bits);
+        return check.getStats();
+    }
+
+    private static void _assertBin(CrossCheckEngine.Stats stats, double maxFactorError){
+        String what = stats.toString();
+        assertEquals(what, 1, stats.binChecked);
+        assertEquals(what, 0, stats.sizeMismatch);
+        assertEquals(what, 0, stats.referenceErrors);
+        assertEquals(what, 0, stats.bytesOverOne);
+        assertTrue(what, stats.maxByteDelta <= 1);
+        assertTrue(what, stats.maxFactorError <= maxFactorError);
+    }
+}
@@ -0,0 +1,154 @@
+package com.buyfull.dsp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FFTPlan的各个变换与朴素DFT比对，误差按结果的最大模计算相对值
+ */
+public class FFTPlanTest {
+    private static final int LOG2N = 10;
+    private static final int N = 1 << LOG2N;
+    private static final double FLOAT_TOLERANCE = 1e-5;   //float舍入，每一级约1e-7
+    private static final double FIXED_TOLERANCE = 1e-4;   //Q15旋转因子和每一级的舍入，约3e-5
+
+    @Test
+    public void forwardMatchesDFT(){
+        float[] fr = TestSignals.random(N, 1);
+        float[] fi = TestSignals.random(N, 2);
+        double[][] expected = _dft(fr, fi, -1, 1.0 / N);
+
+        FFTPlan.get(LOG2N).forward(fr, fi);
+        _assertClose("forward", expected, fr, fi, N, FLOAT_TOLERANCE);
+    }
+
+    @Test
+    public void inverseMatchesDFT(){
+        float[] fr = TestSignals.random(N, 5);
+        float[] fi = TestSignals.random(N, 6);
+        double[][] expected = _dft(fr, fi, 1, 1.0);
+
+        FFTPlan.get(LOG2N).inverse(fr, fi);
+        _assertClose("inverse", expected, fr, fi, N, FLOAT_TOLERANCE);
+    }
+
+    @Test
+    public void inverseUndoesForward(){
+        float[] fr = TestSignals.random(N, 7);
+        float[] fi = TestSignals.random(N, 8);
+        double[][] expected = new double[2][N];
+        for (int i = 0; i < N; ++i){
+            expected[0][i] = fr[i];
+            expected[1][i] = fi[i];
+        }
+
+        FFTPlan plan = FFTPlan.get(LOG2N);
+        plan.forward(fr, fi);
+        plan.inverse(fr, fi);
+        _assertClose("inverse(forward)", expected, fr, fi, N, FLOAT_TOLERANCE);
+    }
+
+    @Test
+    public void forwardRealMatchesDFT(){
+        float[] fr = TestSignals.random(N, 9);
+        float[] fi = new float[N];
+        double[][] expected = _dft(fr, fi, -1, 1.0 / N);
+
+        FFTPlan.get(LOG2N).forwardReal(fr, fi);
+        //只输出0..n/2的频点
+        _assertClose("forwardReal", expected, fr, fi, N / 2 + 1, FLOAT_TOLERANCE);
+    }
+
+    @Test
+    public void forwardRealFixedMatchesDFT(){
+        //输入是forwardRealFixed的打包格式：偶数点在fr，奇数点在fi，最大值小于2^29
+        float[] x = TestSignals.random(N, 11);
+        int[] fr = new int[N / 2 + 1];
+        int[] fi = new int[N / 2 + 1];
+        float[] xr = new float[N];
+        for (int i = 0; i < N; ++i){
+            int v = Math.max(-(1 << 29) + 1, Math.min((1 << 29) - 1, Math.round(x[i] * (1 << 26))));
+            xr[i] = v;
+            if ((i & 1) == 0){
+                fr[i >> 1] = v;
+            }else{
+                fi[i >> 1] = v;
+            }
+        }
+        double[][] expected = _dft(xr, new float[N], -1, 1.0 / N);
+
+        FFTPlan.get(LOG2N).forwardRealFixed(fr, fi);
+        float[] or = new float[N / 2 + 1];
+        float[] oi = new float[N / 2 + 1];
+        for (int i = 0; i <= N / 2; ++i){
+            or[i] = fr[i];
+            oi[i] = fi[i];
+        }
+        _assertClose("forwardRealFixed", expected, or, oi, N / 2 + 1, FIXED_TOLERANCE);
+    }
+
+    @Test
+    public void forwardParallelMatchesForward(){
+        //n要不小于PARALLEL_MIN_SIZE才会真的分线程
+        int log2n = 16;
+        float[] fr = TestSignals.random(1 << log2n, 3);
+        float[] fi = TestSignals.random(1 << log2n, 4);
+        float[] pr = fr.clone();
+        float[] pi = fi.clone();
+
+        FFTPlan.get(log2n).forward(fr, fi);
+        FFTPlan.get(log2n).forwardParallel(pr, pi);
+        for (int i = 0; i < fr.length; ++i){
+            assertTrue("forwardParallel differs at " + i, fr[i] == pr[i] && fi[i] == pi[i]);
+        }
+    }
+
+    @Test
+    public void forwardRealParallelMatchesForwardReal(){
+        int log2n = 16;
+        float[] fr = TestSignals.random(1 << log2n, 10);
+        float[] fi = new float[1 << log2n];
+        float[] pr = fr.clone();
+        float[] pi = new float[1 << log2n];
+
+        FFTPlan.get(log2n).forwardReal(fr, fi, false);
+        FFTPlan.get(log2n).forwardReal(pr, pi, true);
+        for (int i = 0; i <= fr.length / 2; ++i){
+            assertTrue("forwardReal(parallel) differs at " + i, fr[i] == pr[i] && fi[i] == pi[i]);
+        }
+    }
+
+    /**
+     * @return 每个频点乘scale后的{实部[], 虚部[]}
+     */
+    private static double[][] _dft(float[] fr, float[] fi, int sign, double scale){
+        int n = fr.length;
+        double[] xr = new double[n];
+        double[] xi = new double[n];
+        for (int i = 0; i < n; ++i){
+            xr[i] = fr[i];
+            xi[i] = fi[i];
+        }
+        double[][] result = new double[2][n];
+        for (int k = 0; k < n; ++k){
+            double[] x = TestSignals.dft(xr, xi, k, sign);
+            result[0][k] = x[0] * scale;
+            result[1][k] = x[1] * scale;
+        }
+        return result;
+    }
+
+    /**
+     * 前count个点与expected的最大误差不超过最大模的tolerance倍
+     */
+    private static void _assertClose(String what, double[][] expected, float[] fr, float[] fi, int count, double tolerance){
+        double maxAbs = 0;
+        double maxError = 0;
+        for (int i = 0; i < count; ++i){
+            maxAbs = Math.max(maxAbs, Math.hypot(expected[0][i], expected[1][i]));
+            maxError = Math.max(maxError, Math.hypot(fr[i] - expected[0][i], fi[i] - expected[1][i]));
+        }
+        assertTrue(what + " error " + maxError + " of " + maxAbs, maxError <= maxAbs * tolerance);
+    }
+}
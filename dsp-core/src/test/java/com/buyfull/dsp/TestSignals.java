@@ -0,0 +1,91 @@
+package com.buyfull.dsp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * 测试用的录音数据和朴素DFT，朴素DFT全部用double计算，作为FFT的标准答案
+ */
+final class TestSignals {
+    private TestSignals(){
+    }
+
+    /**
+     * 带内几个单音 + 一个低频单音 + 白噪声，48kHz单声道，与jmh的BenchmarkSignals相同
+     * @param frames    帧数
+     * @param bits      16或32(float)
+     */
+    static byte[] pcm(int frames, int bits){
+        Random random = new Random(frames * 31 + bits);
+        ByteBuffer buffer = ByteBuffer.allocate(frames * (bits / 8)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < frames; ++i){
+            double t = (double) i / BuyfullDsp.SAMPLE_RATE;
+            double v = 0.01 * Math.sin(2 * Math.PI * 18000 * t)
+                    + 0.006 * Math.sin(2 * Math.PI * 19500 * t)
+                    + 0.1 * Math.sin(2 * Math.PI * 440 * t)
+                    + 0.001 * random.nextGaussian();
+            if (bits == 16){
+                buffer.putShort((short) Math.round(v * 32767));
+            }else{
+                buffer.putFloat((float) v);
+            }
+        }
+        return buffer.array();
+    }
+
+    static float[] random(int count, long seed){
+        Random random = new Random(seed);
+        float[] result = new float[count];
+        for (int i = 0; i < count; ++i){
+            result[i] = (float) random.nextGaussian();
+        }
+        return result;
+    }
+
+    /**
+     * 把16bit PCM（多声道时交错排列）放进环形缓冲区，第一个采样在start，start接近缓冲区结尾时窗口会跨过结尾
+     */
+    static short[] ring(byte[] pcm16, int ringSize, long start){
+        short[] ring = new short[ringSize];
+        int samples = pcm16.length / 2;
+        for (int i = 0; i < samples; ++i){
+            ring[(int) ((start + i) & (ringSize - 1))] = (short) ((pcm16[2 * i] & 0xff) | (pcm16[2 * i + 1] << 8));
+        }
+        return ring;
+    }
+
+    /**
+     * 单声道16bit PCM变成双声道，第二个声道取反，只有第一个声道参与计算
+     */
+    static byte[] stereo(byte[] pcm16){
+        byte[] result = new byte[pcm16.length * 2];
+        for (int i = 0; i < pcm16.length; i += 2){
+            short v = (short) ((pcm16[i] & 0xff) | (pcm16[i + 1] << 8));
+            short w = (short) -v;
+            result[2 * i] = pcm16[i];
+            result[2 * i + 1] = pcm16[i + 1];
+            result[2 * i + 2] = (byte) w;
+            result[2 * i + 3] = (byte) (w >> 8);
+        }
+        return result;
+    }
+
+    /**
+     * 朴素DFT的第k个频点：Σ x[j]·e^(sign·2πijk/n)，不缩放
+     * @return {实部, 虚部}
+     */
+    static double[] dft(double[] xr, double[] xi, int k, int sign){
+        int n = xr.length;
+        double sumR = 0, sumI = 0;
+        for (int j = 0; j < n; ++j){
+            //jk对n取模后再算角度，n较大时也不会损失精度
+            double angle = sign * 2 * Math.PI * (((long) j * k) % n) / n;
+            double c = Math.cos(angle);
+            double s = Math.sin(angle);
+            sumR += xr[j] * c - xi[j] * s;
+            sumI += xr[j] * s + xi[j] * c;
+        }
+        return new double[]{sumR, sumI};
+    }
+}